@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares decoding a large getall response the old way, the whole body read
+ * into a string then into an org.json tree, with the streaming decoder of
+ * GTaskClient. Times are logged, run with a release-like build for real numbers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskDecodeBenchmark {
+    private static final String TAG = "TaskDecodeBenchmark";
+
+    private static final int TASKS = 5000;
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void decodeTasks() throws Exception {
+        byte[] body = buildResponse(TASKS);
+
+        ArrayList<Task> tree = decodeTree(body);
+        ArrayList<Task> stream = decodeStream(body);
+        assertEquals(TASKS, tree.size());
+        assertEquals(tree.size(), stream.size());
+        for (int i = 0; i < tree.size(); i++) {
+            Task expected = tree.get(i);
+            Task actual = stream.get(i);
+            assertEquals(expected.getGid(), actual.getGid());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getNotes(), actual.getNotes());
+            assertEquals(expected.getLastModified(), actual.getLastModified());
+            assertEquals(expected.getDeleted(), actual.getDeleted());
+            assertEquals(expected.getCompleted(), actual.getCompleted());
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decodeTree(body);
+            decodeStream(body);
+        }
+        long treeTime = 0;
+        long streamTime = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            decodeTree(body);
+            treeTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            decodeStream(body);
+            streamTime += System.nanoTime() - start;
+        }
+        Log.i(TAG, TASKS + " tasks, " + body.length + " bytes: tree "
+                + treeTime / ROUNDS / 1000 + "us, stream " + streamTime / ROUNDS / 1000 + "us");
+    }
+
+    // The path before the streaming decoder
+    private static ArrayList<Task> decodeTree(byte[] body) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(body)));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line);
+        }
+        JSONArray jsTasks = new JSONObject(sb.toString())
+                .getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < jsTasks.length(); i++) {
+            Task task = new Task();
+            task.setContentByRemoteJSON(jsTasks.getJSONObject(i));
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private static ArrayList<Task> decodeStream(byte[] body) throws Exception {
+        Reader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body)));
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        try {
+            return GTaskClient.readTasks(reader, false);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // A response shaped like the one of a getall action, with the fields the
+    // decoder skips
+    private static byte[] buildResponse(int count) throws Exception {
+        JSONArray jsTasks = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject task = new JSONObject();
+            task.put(GTaskStringUtils.GTASK_JSON_ID, "task_" + i);
+            task.put(GTaskStringUtils.GTASK_JSON_NAME, "Note " + i);
+            task.put(GTaskStringUtils.GTASK_JSON_NOTES, "Line one of note " + i
+                    + "\nline two, with \"quotes\" and unicode 中文");
+            task.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 1300000000000L + i);
+            task.put(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            task.put(GTaskStringUtils.GTASK_JSON_COMPLETED, i % 7 == 0);
+            task.put("creator_id", "creator");
+            task.put("list_id", "list_0");
+            task.put("type", "TASK");
+            task.put("child_entity", new JSONArray());
+            jsTasks.put(task);
+        }
+        JSONObject js = new JSONObject();
+        js.put(GTaskStringUtils.GTASK_JSON_RESULTS, new JSONArray());
+        js.put(GTaskStringUtils.GTASK_JSON_TASKS, jsTasks);
+        js.put("latest_sync_point", 1300000000000L + count);
+        return js.toString(1).getBytes("UTF-8");
+    }
+}
@@ -23,7 +23,10 @@ import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 
 public class Contact {
     private static HashMap<String, String> sContactCache;
@@ -36,13 +39,104 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
-    public static String getContact(Context context, String phoneNumber) {
+    // Numbers looked up in one query by prefetchContacts
+    private static final int PREFETCH_BATCH_SIZE = 50;
+
+    private static synchronized HashMap<String, String> getCache() {
         if(sContactCache == null) {
             sContactCache = new HashMap<String, String>();
         }
+        return sContactCache;
+    }
+
+    /**
+     * Whether the number has been looked up, a number without contact is
+     * cached as well once it was looked up by {@link #prefetchContacts}
+     */
+    public static boolean isContactCached(String phoneNumber) {
+        HashMap<String, String> cache = getCache();
+        synchronized (cache) {
+            return cache.containsKey(phoneNumber);
+        }
+    }
 
-        if(sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+    /**
+     * Get the name of the number without querying, null if it's unknown
+     */
+    public static String getCachedContact(String phoneNumber) {
+        HashMap<String, String> cache = getCache();
+        synchronized (cache) {
+            return cache.get(phoneNumber);
+        }
+    }
+
+    /**
+     * Look up the names of the numbers in batches, should not be called on
+     * the UI thread
+     *
+     * @return whether any name was found
+     */
+    public static boolean prefetchContacts(Context context, Collection<String> phoneNumbers) {
+        ArrayList<String> numbers = new ArrayList<String>();
+        for (String number : phoneNumbers) {
+            if (!isContactCached(number)) {
+                numbers.add(number);
+            }
+        }
+
+        boolean found = false;
+        for (int i = 0; i < numbers.size(); i += PREFETCH_BATCH_SIZE) {
+            List<String> batch = numbers.subList(i,
+                    Math.min(i + PREFETCH_BATCH_SIZE, numbers.size()));
+            HashMap<String, String> names = new HashMap<String, String>();
+            StringBuilder selection = new StringBuilder();
+            for (String number : batch) {
+                if (selection.length() > 0) {
+                    selection.append(" OR ");
+                }
+                selection.append('(').append(CALLER_ID_SELECTION.replace("+",
+                        PhoneNumberUtils.toCallerIDMinMatch(number))).append(')');
+            }
+            Cursor cursor = context.getContentResolver().query(
+                    Data.CONTENT_URI,
+                    new String [] { Phone.NUMBER, Phone.DISPLAY_NAME },
+                    selection.toString(),
+                    batch.toArray(new String[batch.size()]),
+                    null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        String contactNumber = cursor.getString(0);
+                        for (String number : batch) {
+                            if (!names.containsKey(number)
+                                    && PhoneNumberUtils.compare(number, contactNumber)) {
+                                names.put(number, cursor.getString(1));
+                            }
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            HashMap<String, String> cache = getCache();
+            synchronized (cache) {
+                for (String number : batch) {
+                    // Cache the misses too, so they are not looked up again
+                    cache.put(number, names.get(number));
+                }
+            }
+            found |= !names.isEmpty();
+        }
+        return found;
+    }
+
+    public static String getContact(Context context, String phoneNumber) {
+        HashMap<String, String> cache = getCache();
+        synchronized (cache) {
+            if(cache.containsKey(phoneNumber)) {
+                return cache.get(phoneNumber);
+            }
         }
 
         String selection = CALLER_ID_SELECTION.replace("+",
@@ -57,7 +151,9 @@ public class Contact {
         if (cursor != null && cursor.moveToFirst()) {
             try {
                 String name = cursor.getString(0);
-                sContactCache.put(phoneNumber, name);
+                synchronized (cache) {
+                    cache.put(phoneNumber, name);
+                }
                 return name;
             } catch (IndexOutOfBoundsException e) {
                 Log.e(TAG, " Cursor get string error " + e.toString());
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In memory copy of the folders, shared by everything that lists them. It is
+ * dropped when the notes change and loaded again in the background, so the
+ * folder pickers usually open without a query.
+ */
+public class FolderCache {
+    private static final String TAG = "FolderCache";
+
+    // Delay to gather the change notifications of a batch into one reload
+    private static final long RELOAD_DELAY = 200;
+
+    private static final String[] PROJECTION = new String[] {
+        NoteColumns.ID,
+        NoteColumns.PARENT_ID,
+        NoteColumns.TYPE,
+        NoteColumns.SNIPPET,
+        NoteColumns.NOTES_COUNT
+    };
+
+    private static final int ID_COLUMN            = 0;
+    private static final int PARENT_ID_COLUMN     = 1;
+    private static final int TYPE_COLUMN          = 2;
+    private static final int SNIPPET_COLUMN       = 3;
+    private static final int NOTES_COUNT_COLUMN   = 4;
+
+    private static FolderCache sInstance;
+
+    public static class Folder {
+        public final long id;
+        public final long parentId;
+        public final int type;
+        public final String name;
+        public final int notesCount;
+
+        private Folder(Cursor cursor) {
+            id = cursor.getLong(ID_COLUMN);
+            parentId = cursor.getLong(PARENT_ID_COLUMN);
+            type = cursor.getInt(TYPE_COLUMN);
+            String snippet = cursor.getString(SNIPPET_COLUMN);
+            name = (snippet == null) ? "" : snippet;
+            notesCount = cursor.getInt(NOTES_COUNT_COLUMN);
+        }
+    }
+
+    private Context mContext;
+
+    private Handler mHandler;
+
+    // Folders and system folders, the latest modified first
+    private List<Folder> mFolders;
+
+    private HashMap<Long, Folder> mFolderMap;
+
+    // Increased on every change, a load started before it is not kept
+    private int mGeneration;
+
+    public static synchronized FolderCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FolderCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private FolderCache(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+        mContext.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    private void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mFolders = null;
+            mFolderMap = null;
+        }
+        mHandler.removeCallbacks(mReload);
+        mHandler.postDelayed(mReload, RELOAD_DELAY);
+    }
+
+    private final Runnable mReload = new Runnable() {
+        public void run() {
+            prefetch();
+        }
+    };
+
+    /**
+     * Load the folders in the background if they are not cached
+     */
+    public void prefetch() {
+        if (peekFolders() != null) {
+            return;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            protected Void doInBackground(Void... unused) {
+                getFolders();
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * The cached folders without querying, null if they are not loaded
+     */
+    public synchronized List<Folder> peekFolders() {
+        return mFolders;
+    }
+
+    /**
+     * The folders, queried if they are not cached so it should not be called
+     * on the UI thread. Null if the query failed.
+     */
+    public List<Folder> getFolders() {
+        int generation;
+        synchronized (this) {
+            if (mFolders != null) {
+                return mFolders;
+            }
+            generation = mGeneration;
+        }
+
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE, null,
+                NoteColumns.MODIFIED_DATE + " DESC");
+        if (c == null) {
+            Log.e(TAG, "Query folders failed");
+            return null;
+        }
+        List<Folder> folders = new ArrayList<Folder>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                folders.add(new Folder(c));
+            }
+        } finally {
+            c.close();
+        }
+        folders = Collections.unmodifiableList(folders);
+        HashMap<Long, Folder> folderMap = new HashMap<Long, Folder>();
+        for (Folder folder : folders) {
+            folderMap.put(folder.id, folder);
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mFolders = folders;
+                mFolderMap = folderMap;
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * The cached folder of the id, null if it is unknown or not loaded
+     */
+    public synchronized Folder peekFolder(long id) {
+        return mFolderMap != null ? mFolderMap.get(id) : null;
+    }
+
+    /**
+     * Whether the folder is the ancestor or nested in it, walking up the
+     * cached folders. False if they are not loaded.
+     */
+    public synchronized boolean isInSubtree(long folderId, long ancestorId) {
+        if (mFolderMap == null) {
+            return false;
+        }
+        Folder folder = mFolderMap.get(folderId);
+        // The depth is bounded by the number of folders, in case of a cycle
+        for (int i = 0; folder != null && i <= mFolderMap.size(); i++) {
+            if (folder.id == ancestorId) {
+                return true;
+            }
+            if (folder.type != Notes.TYPE_FOLDER) {
+                break;
+            }
+            folder = mFolderMap.get(folder.parentId);
+        }
+        return false;
+    }
+}
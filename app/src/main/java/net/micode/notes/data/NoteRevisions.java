@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.RevisionColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+/**
+ * Revision store of the note text. Every {@link #SNAPSHOT_INTERVAL} revisions
+ * a full snapshot is written, the revisions in between only keep the changed
+ * middle of the text against the revision before them. Rebuilding a revision
+ * reads at most one snapshot and the deltas after it.
+ */
+class NoteRevisions {
+    private static final int SNAPSHOT_INTERVAL = 10;
+
+    // Revisions are dropped a snapshot group at a time over these limits
+    private static final int MAX_REVISIONS = 50;
+
+    private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final String[] PROJECTION = new String[] {
+        RevisionColumns.ID,
+        RevisionColumns.TYPE,
+        RevisionColumns.PREFIX_LENGTH,
+        RevisionColumns.SUFFIX_LENGTH,
+        RevisionColumns.CONTENT
+    };
+
+    private static final int ID_COLUMN = 0;
+
+    private static final int TYPE_COLUMN = 1;
+
+    private static final int PREFIX_LENGTH_COLUMN = 2;
+
+    private static final int SUFFIX_LENGTH_COLUMN = 3;
+
+    private static final int CONTENT_COLUMN = 4;
+
+    /**
+     * Add the text as the newest revision of the note, nothing is written if
+     * it equals the newest revision. Inside a transaction of the caller, e.g.
+     * a batch, it is written as part of it rather than in a nested one, whose
+     * failure would roll the whole batch back
+     */
+    static void addRevision(SQLiteDatabase db, long noteId, String content) {
+        if (content == null) {
+            return;
+        }
+        if (db.inTransaction()) {
+            writeRevision(db, noteId, content);
+            return;
+        }
+        db.beginTransaction();
+        try {
+            writeRevision(db, noteId, content);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void writeRevision(SQLiteDatabase db, long noteId, String content) {
+        int count = 0;
+        String latest = null;
+        Cursor c = queryLatestGroup(db, noteId, Long.MAX_VALUE);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    latest = apply(latest, c);
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (content.equals(latest)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(RevisionColumns.NOTE_ID, noteId);
+        values.put(RevisionColumns.CREATED_DATE, now);
+        if (!putDelta(values, latest, content, count)) {
+            values.put(RevisionColumns.TYPE, RevisionColumns.TYPE_SNAPSHOT);
+            values.put(RevisionColumns.PREFIX_LENGTH, 0);
+            values.put(RevisionColumns.SUFFIX_LENGTH, 0);
+            values.put(RevisionColumns.CONTENT, content);
+        }
+        db.insert(TABLE.REVISION, null, values);
+        compact(db, noteId, now);
+    }
+
+    private static boolean putDelta(ContentValues values, String from, String to, int count) {
+        if (from == null || count >= SNAPSHOT_INTERVAL) {
+            return false;
+        }
+        int max = Math.min(from.length(), to.length());
+        int prefix = 0;
+        while (prefix < max && from.charAt(prefix) == to.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && from.charAt(from.length() - 1 - suffix)
+                == to.charAt(to.length() - 1 - suffix)) {
+            suffix++;
+        }
+        String middle = to.substring(prefix, to.length() - suffix);
+        // A delta about the size of the text saves nothing over a snapshot
+        if (middle.length() > to.length() / 2) {
+            return false;
+        }
+        values.put(RevisionColumns.TYPE, RevisionColumns.TYPE_DELTA);
+        values.put(RevisionColumns.PREFIX_LENGTH, prefix);
+        values.put(RevisionColumns.SUFFIX_LENGTH, suffix);
+        values.put(RevisionColumns.CONTENT, middle);
+        return true;
+    }
+
+    private static String apply(String previous, Cursor c) {
+        if (c.getInt(TYPE_COLUMN) == RevisionColumns.TYPE_SNAPSHOT || previous == null) {
+            return c.getString(CONTENT_COLUMN);
+        }
+        int prefix = c.getInt(PREFIX_LENGTH_COLUMN);
+        int suffix = c.getInt(SUFFIX_LENGTH_COLUMN);
+        return previous.substring(0, prefix) + c.getString(CONTENT_COLUMN)
+                + previous.substring(previous.length() - suffix);
+    }
+
+    /**
+     * Query the revisions of the note from the last snapshot not after
+     * {@code maxId} up to {@code maxId}, in order
+     */
+    private static Cursor queryLatestGroup(SQLiteDatabase db, long noteId, long maxId) {
+        String note = String.valueOf(noteId);
+        String max = String.valueOf(maxId);
+        return db.query(TABLE.REVISION, PROJECTION,
+                RevisionColumns.NOTE_ID + "=? AND " + RevisionColumns.ID + "<=? AND "
+                        + RevisionColumns.ID + ">=(SELECT IFNULL(MAX(" + RevisionColumns.ID
+                        + "),0) FROM " + TABLE.REVISION + " WHERE " + RevisionColumns.NOTE_ID
+                        + "=? AND " + RevisionColumns.ID + "<=? AND " + RevisionColumns.TYPE
+                        + "=" + RevisionColumns.TYPE_SNAPSHOT + ")",
+                new String[] { note, max, note, max }, null, null, RevisionColumns.ID + " ASC");
+    }
+
+    /**
+     * Rebuild the text of a revision, null if there is no such revision
+     */
+    static String getContent(SQLiteDatabase db, long noteId, long revisionId) {
+        String content = null;
+        boolean found = false;
+        Cursor c = queryLatestGroup(db, noteId, revisionId);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    content = apply(content, c);
+                    found = c.getLong(ID_COLUMN) == revisionId;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return found ? content : null;
+    }
+
+    /**
+     * Keep the newest snapshot group, and the older groups as long as they
+     * are within both {@link #MAX_REVISIONS} and {@link #MAX_AGE}
+     */
+    private static void compact(SQLiteDatabase db, long noteId, long now) {
+        long keepFrom = -1;
+        Cursor c = db.query(TABLE.REVISION, new String[] {
+                RevisionColumns.ID, RevisionColumns.TYPE, RevisionColumns.CREATED_DATE
+            }, RevisionColumns.NOTE_ID + "=?", new String[] { String.valueOf(noteId) },
+                null, null, RevisionColumns.ID + " DESC");
+        if (c == null) {
+            return;
+        }
+        try {
+            int count = 0;
+            while (c.moveToNext()) {
+                count++;
+                if (keepFrom != -1 && (count > MAX_REVISIONS || now - c.getLong(2) > MAX_AGE)) {
+                    break;
+                }
+                if (c.getInt(1) == RevisionColumns.TYPE_SNAPSHOT) {
+                    keepFrom = c.getLong(0);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (keepFrom != -1) {
+            db.delete(TABLE.REVISION, RevisionColumns.NOTE_ID + "=? AND " + RevisionColumns.ID
+                    + "<?", new String[] { String.valueOf(noteId), String.valueOf(keepFrom) });
+        }
+    }
+}
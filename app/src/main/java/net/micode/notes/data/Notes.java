@@ -56,11 +56,24 @@ public class Notes {
      */
     public static final Uri CONTENT_NOTE_URI = Uri.parse("content://" + AUTHORITY + "/note");
 
+    /**
+     * Query parameter of {@link #CONTENT_NOTE_URI} for the max number of rows
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     /**
      * Uri to query data
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to list the revisions of notes, the rows only have the columns
+     * {@link RevisionColumns#ID}, {@link RevisionColumns#NOTE_ID} and
+     * {@link RevisionColumns#CREATED_DATE}. Query a single revision to get its
+     * {@link RevisionColumns#CONTENT}
+     */
+    public static final Uri CONTENT_REVISION_URI = Uri.parse("content://" + AUTHORITY + "/revision");
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -165,6 +178,19 @@ public class Notes {
          * <P> Type : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * Whether the note is pinned to the top of its folder
+         * <P> Type : INTEGER </P>
+         */
+        public static final String PINNED = "pinned";
+
+        /**
+         * Position among the pinned notes of the folder, in ascending order.
+         * Ranks are spaced out so a note is moved by changing its rank only.
+         * <P> Type : INTEGER (long) </P>
+         */
+        public static final String PIN_RANK = "pin_rank";
     }
 
     public interface DataColumns {
@@ -241,6 +267,81 @@ public class Notes {
         public static final String DATA5 = "data5";
     }
 
+    public interface RevisionColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The note's id this revision belongs to
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * Created data for this revision
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CREATED_DATE = "created_date";
+
+        /**
+         * Whether the revision is a full snapshot or a delta against the
+         * previous revision, {@link #TYPE_SNAPSHOT} or {@link #TYPE_DELTA}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String TYPE = "type";
+
+        /**
+         * Length of the previous revision's text kept at the start
+         * <P> Type: INTEGER </P>
+         */
+        public static final String PREFIX_LENGTH = "prefix_length";
+
+        /**
+         * Length of the previous revision's text kept at the end
+         * <P> Type: INTEGER </P>
+         */
+        public static final String SUFFIX_LENGTH = "suffix_length";
+
+        /**
+         * The full text for a snapshot, or the text between the kept prefix
+         * and suffix for a delta
+         * <P> Type: TEXT </P>
+         */
+        public static final String CONTENT = "content";
+
+        public static final int TYPE_SNAPSHOT = 0;
+
+        public static final int TYPE_DELTA = 1;
+    }
+
+    /**
+     * Closure of the folder tree, one row for every folder and each of its
+     * ancestors including itself. Kept up to date by triggers on the note
+     * table, so a whole subtree is read with one indexed lookup.
+     */
+    public interface FolderTreeColumns {
+        /**
+         * The folder's id at the top of the path
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ANCESTOR = "ancestor";
+
+        /**
+         * The folder's id at the bottom of the path
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String DESCENDANT = "descendant";
+
+        /**
+         * Number of levels between the two folders, 0 for the folder itself
+         * <P> Type: INTEGER </P>
+         */
+        public static final String DEPTH = "depth";
+    }
+
     public static final class TextNote implements DataColumns {
         /**
          * Mode to indicate the text in check list mode or not
@@ -23,19 +23,25 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.FolderTreeColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
 
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 9;
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String REVISION = "revision";
+
+        public static final String FOLDER_TREE = "folder_tree";
     }
 
     private static final String TAG = "NotesDatabaseHelper";
@@ -60,7 +66,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.PINNED + " INTEGER NOT NULL DEFAULT 0," +
+            NoteColumns.PIN_RANK + " INTEGER NOT NULL DEFAULT 0" +
         ")";
 
     private static final String CREATE_DATA_TABLE_SQL =
@@ -78,6 +86,117 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
         ")";
 
+    private static final String CREATE_REVISION_TABLE_SQL =
+        "CREATE TABLE " + TABLE.REVISION + "(" +
+            RevisionColumns.ID + " INTEGER PRIMARY KEY," +
+            RevisionColumns.NOTE_ID + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.CREATED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+            RevisionColumns.TYPE + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.PREFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.SUFFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0," +
+            RevisionColumns.CONTENT + " TEXT NOT NULL DEFAULT ''" +
+        ")";
+
+    private static final String CREATE_REVISION_NOTE_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS revision_note_id_index ON " +
+        TABLE.REVISION + "(" + RevisionColumns.NOTE_ID + "," + RevisionColumns.ID + ");";
+
+    private static final String CREATE_FOLDER_TREE_TABLE_SQL =
+        "CREATE TABLE " + TABLE.FOLDER_TREE + "(" +
+            FolderTreeColumns.ANCESTOR + " INTEGER NOT NULL," +
+            FolderTreeColumns.DESCENDANT + " INTEGER NOT NULL," +
+            FolderTreeColumns.DEPTH + " INTEGER NOT NULL," +
+            "PRIMARY KEY(" + FolderTreeColumns.ANCESTOR + "," + FolderTreeColumns.DESCENDANT + ")" +
+        ")";
+
+    private static final String CREATE_FOLDER_TREE_DESCENDANT_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS folder_tree_descendant_index ON " +
+        TABLE.FOLDER_TREE + "(" + FolderTreeColumns.DESCENDANT + ");";
+
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.PARENT_ID + ");";
+
+    /**
+     * Indexes of the sort orders of the notes list, one per sort key with the
+     * columns in the order and directions of the ORDER BY, so both the first
+     * page and the pages after a given row are read by an index seek. The
+     * pinned notes have their own order by rank. Must match NotesSortOrder.
+     */
+    private static final String[] CREATE_NOTE_SORT_INDEXES_SQL = {
+        "CREATE INDEX IF NOT EXISTS note_sort_modified_date_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.PINNED + " DESC," +
+            NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC);",
+        "CREATE INDEX IF NOT EXISTS note_sort_created_date_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.PINNED + " DESC," +
+            NoteColumns.CREATED_DATE + " DESC," + NoteColumns.ID + " DESC);",
+        "CREATE INDEX IF NOT EXISTS note_sort_title_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.PINNED + " DESC," +
+            NoteColumns.SNIPPET + " COLLATE NOCASE," + NoteColumns.ID + ");",
+        "CREATE INDEX IF NOT EXISTS note_sort_bg_color_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.PINNED + " DESC," +
+            NoteColumns.BG_COLOR_ID + "," + NoteColumns.ID + ");",
+        "CREATE INDEX IF NOT EXISTS note_sort_alerted_date_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.PINNED + " DESC," +
+            NoteColumns.ALERTED_DATE + " DESC," + NoteColumns.ID + " DESC);",
+        "CREATE INDEX IF NOT EXISTS note_sort_pin_rank_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.PINNED + " DESC," +
+            NoteColumns.PIN_RANK + "," + NoteColumns.ID + ");"
+    };
+
+    /**
+     * Sort indexes of version 7, before notes could be pinned, replaced by
+     * {@link #CREATE_NOTE_SORT_INDEXES_SQL} in version 8
+     */
+    private static final String[] CREATE_NOTE_SORT_INDEXES_V7_SQL = {
+        "CREATE INDEX IF NOT EXISTS note_sort_modified_date_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC);",
+        "CREATE INDEX IF NOT EXISTS note_sort_created_date_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.CREATED_DATE + " DESC," + NoteColumns.ID + " DESC);",
+        "CREATE INDEX IF NOT EXISTS note_sort_title_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.SNIPPET + " COLLATE NOCASE," + NoteColumns.ID + ");",
+        "CREATE INDEX IF NOT EXISTS note_sort_bg_color_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.BG_COLOR_ID + "," + NoteColumns.ID + ");",
+        "CREATE INDEX IF NOT EXISTS note_sort_alerted_date_index ON " + TABLE.NOTE + "(" +
+            NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+            NoteColumns.ALERTED_DATE + " DESC," + NoteColumns.ID + " DESC);"
+    };
+
+    private static final String[] NOTE_SORT_INDEXES_V7 = {
+        "note_sort_modified_date_index",
+        "note_sort_created_date_index",
+        "note_sort_title_index",
+        "note_sort_bg_color_index",
+        "note_sort_alerted_date_index"
+    };
+
+    /**
+     * Fill the closure of the existing folders, only user folders are put
+     * under a parent, the system folders are kept as single roots
+     */
+    private static final String FILL_FOLDER_TREE_SQL =
+        "WITH RECURSIVE tree(" + FolderTreeColumns.ANCESTOR + "," + FolderTreeColumns.DESCENDANT +
+        "," + FolderTreeColumns.DEPTH + ") AS (" +
+        "  SELECT " + NoteColumns.ID + "," + NoteColumns.ID + ",0 FROM " + TABLE.NOTE +
+        "   WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+        "  UNION ALL" +
+        "  SELECT tree." + FolderTreeColumns.ANCESTOR + "," + TABLE.NOTE + "." + NoteColumns.ID +
+        ",tree." + FolderTreeColumns.DEPTH + "+1 FROM tree JOIN " + TABLE.NOTE +
+        "   ON " + TABLE.NOTE + "." + NoteColumns.PARENT_ID + "=tree." + FolderTreeColumns.DESCENDANT +
+        "   WHERE " + TABLE.NOTE + "." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        ")" +
+        " INSERT INTO " + TABLE.FOLDER_TREE + " SELECT * FROM tree";
+
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
@@ -182,6 +301,32 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "   WHERE " + DataColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    /**
+     * Unpin the note moved to another folder, its rank is only meaningful
+     * among the pinned notes of the folder it was pinned in
+     */
+    private static final String NOTE_UNPIN_ON_MOVE_TRIGGER =
+        "CREATE TRIGGER note_unpin_on_move " +
+        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.PINNED + "=1" +
+        "  AND new." + NoteColumns.PARENT_ID + "<>old." + NoteColumns.PARENT_ID +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.PINNED + "=0," + NoteColumns.PIN_RANK + "=0" +
+        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Delete revisions belong to note which has been deleted
+     */
+    private static final String NOTE_DELETE_REVISION_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_revision_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.REVISION +
+        "   WHERE " + RevisionColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
     /**
      * Delete notes belong to folder which has been deleted
      */
@@ -206,6 +351,106 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    /**
+     * Delete the notes and folders under the whole subtree of the folder
+     * which has been deleted, replaces the one level version once the
+     * folder tree exists
+     */
+    private static final String FOLDER_DELETE_SUBTREE_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER folder_delete_notes_on_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " WHEN old." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE +
+        "   WHERE " + NoteColumns.PARENT_ID + " IN (SELECT " + FolderTreeColumns.DESCENDANT +
+        "    FROM " + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=old." +
+        NoteColumns.ID + ");" +
+        "  DELETE FROM " + TABLE.FOLDER_TREE +
+        "   WHERE " + FolderTreeColumns.DESCENDANT + " IN (SELECT " + FolderTreeColumns.DESCENDANT +
+        "    FROM " + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=old." +
+        NoteColumns.ID + ");" +
+        " END";
+
+    /**
+     * Move the notes and folders under the whole subtree of the folder which
+     * has been moved to trash folder. Every moved row, and the folder, keeps
+     * its parent in origin parent id, so the nesting can be restored
+     */
+    private static final String FOLDER_MOVE_SUBTREE_ON_TRASH_TRIGGER =
+        "CREATE TRIGGER folder_move_notes_on_trash " +
+        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+        "  AND old." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER +
+        "  AND new." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.ORIGIN_PARENT_ID + "=" + NoteColumns.PARENT_ID + "," +
+        NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+        "  WHERE " + NoteColumns.PARENT_ID + " IN (SELECT " + FolderTreeColumns.DESCENDANT +
+        "    FROM " + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=old." +
+        NoteColumns.ID + ");" +
+        "  UPDATE " + TABLE.NOTE +
+        "   SET " + NoteColumns.ORIGIN_PARENT_ID + "=old." + NoteColumns.PARENT_ID +
+        "  WHERE " + NoteColumns.ID + "=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * Add the new folder under all the ancestors of its parent
+     */
+    private static final String FOLDER_TREE_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER folder_tree_on_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.FOLDER_TREE +
+        "   SELECT " + FolderTreeColumns.ANCESTOR + ",new." + NoteColumns.ID + "," +
+        FolderTreeColumns.DEPTH + "+1 FROM " + TABLE.FOLDER_TREE +
+        "   WHERE " + FolderTreeColumns.DESCENDANT + "=new." + NoteColumns.PARENT_ID +
+        "   AND new." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + ";" +
+        "  INSERT INTO " + TABLE.FOLDER_TREE + " VALUES(new." + NoteColumns.ID + ",new." +
+        NoteColumns.ID + ",0);" +
+        " END";
+
+    /**
+     * Refuse to move a folder into itself or one of its sub folders
+     */
+    private static final String FOLDER_TREE_CHECK_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER folder_tree_check_on_update " +
+        " BEFORE UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        "  AND EXISTS (SELECT 1 FROM " + TABLE.FOLDER_TREE +
+        "   WHERE " + FolderTreeColumns.ANCESTOR + "=new." + NoteColumns.ID +
+        "   AND " + FolderTreeColumns.DESCENDANT + "=new." + NoteColumns.PARENT_ID + ")" +
+        " BEGIN" +
+        "  SELECT RAISE(ABORT, 'Folder moved into its own subtree');" +
+        " END";
+
+    /**
+     * Detach the subtree of the moved folder from its old ancestors and put
+     * it under the ancestors of the new parent, two statements whatever the
+     * size of the subtree
+     */
+    private static final String FOLDER_TREE_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER folder_tree_on_update " +
+        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        "  AND old." + NoteColumns.PARENT_ID + "<>new." + NoteColumns.PARENT_ID +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.FOLDER_TREE +
+        "   WHERE " + FolderTreeColumns.DESCENDANT + " IN (SELECT " + FolderTreeColumns.DESCENDANT +
+        "    FROM " + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=new." +
+        NoteColumns.ID + ")" +
+        "   AND " + FolderTreeColumns.ANCESTOR + " NOT IN (SELECT " + FolderTreeColumns.DESCENDANT +
+        "    FROM " + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=new." +
+        NoteColumns.ID + ");" +
+        "  INSERT INTO " + TABLE.FOLDER_TREE +
+        "   SELECT p." + FolderTreeColumns.ANCESTOR + ",c." + FolderTreeColumns.DESCENDANT +
+        ",p." + FolderTreeColumns.DEPTH + "+c." + FolderTreeColumns.DEPTH + "+1" +
+        "   FROM " + TABLE.FOLDER_TREE + " p," + TABLE.FOLDER_TREE + " c" +
+        "   WHERE p." + FolderTreeColumns.DESCENDANT + "=new." + NoteColumns.PARENT_ID +
+        "   AND c." + FolderTreeColumns.ANCESTOR + "=new." + NoteColumns.ID + ";" +
+        " END";
+
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
@@ -225,6 +470,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS note_unpin_on_move");
 
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
@@ -233,6 +479,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
         db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
+        db.execSQL(NOTE_UNPIN_ON_MOVE_TRIGGER);
     }
 
     private void createSystemFolder(SQLiteDatabase db) {
@@ -287,6 +534,47 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
+    public void createRevisionTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_REVISION_TABLE_SQL);
+        db.execSQL(CREATE_REVISION_NOTE_ID_INDEX_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS delete_revision_on_delete");
+        db.execSQL(NOTE_DELETE_REVISION_ON_DELETE_TRIGGER);
+        Log.d(TAG, "revision table has been created");
+    }
+
+    /**
+     * Create the folder tree of the existing folders, after the note table
+     * and its triggers
+     */
+    public void createFolderTreeTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_FOLDER_TREE_TABLE_SQL);
+        db.execSQL(CREATE_FOLDER_TREE_DESCENDANT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(FILL_FOLDER_TREE_SQL);
+        reCreateFolderTreeTriggers(db);
+        Log.d(TAG, "folder tree table has been created");
+    }
+
+    private void createNoteSortIndexes(SQLiteDatabase db) {
+        for (String sql : CREATE_NOTE_SORT_INDEXES_SQL) {
+            db.execSQL(sql);
+        }
+    }
+
+    private void reCreateFolderTreeTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_tree_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_tree_check_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_tree_on_update");
+
+        db.execSQL(FOLDER_DELETE_SUBTREE_ON_DELETE_TRIGGER);
+        db.execSQL(FOLDER_MOVE_SUBTREE_ON_TRASH_TRIGGER);
+        db.execSQL(FOLDER_TREE_ON_INSERT_TRIGGER);
+        db.execSQL(FOLDER_TREE_CHECK_ON_UPDATE_TRIGGER);
+        db.execSQL(FOLDER_TREE_ON_UPDATE_TRIGGER);
+    }
+
     static synchronized NotesDatabaseHelper getInstance(Context context) {
         if (mInstance == null) {
             mInstance = new NotesDatabaseHelper(context);
@@ -298,6 +586,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createRevisionTable(db);
+        createFolderTreeTable(db);
+        createNoteSortIndexes(db);
     }
 
     @Override
@@ -322,9 +613,35 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
+            reCreateFolderTreeTriggers(db);
         }
 
         if (oldVersion != newVersion) {
@@ -359,4 +676,40 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.REVISION);
+        createRevisionTable(db);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.FOLDER_TREE);
+        createFolderTreeTable(db);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        for (String sql : CREATE_NOTE_SORT_INDEXES_V7_SQL) {
+            db.execSQL(sql);
+        }
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.PINNED
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.PIN_RANK
+                + " INTEGER NOT NULL DEFAULT 0");
+        for (String index : NOTE_SORT_INDEXES_V7) {
+            db.execSQL("DROP INDEX IF EXISTS " + index);
+        }
+        createNoteSortIndexes(db);
+    }
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        // The subtree moved to trash keeps its parents, and a moved note is
+        // unpinned since version 9
+        db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        db.execSQL(FOLDER_MOVE_SUBTREE_ON_TRASH_TRIGGER);
+        db.execSQL("DROP TRIGGER IF EXISTS note_unpin_on_move");
+        db.execSQL(NOTE_UNPIN_ON_MOVE_TRIGGER);
+    }
 }
@@ -19,11 +19,16 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.text.TextUtils;
@@ -31,9 +36,13 @@ import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 
 public class NotesProvider extends ContentProvider {
     private static final UriMatcher mMatcher;
@@ -42,6 +51,11 @@ public class NotesProvider extends ContentProvider {
 
     private static final String TAG = "NotesProvider";
 
+    // Uris changed by the batch being applied on this thread, they are
+    // notified once the batch is committed
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchChanges =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+
     private static final int URI_NOTE            = 1;
     private static final int URI_NOTE_ITEM       = 2;
     private static final int URI_DATA            = 3;
@@ -50,6 +64,9 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
 
+    private static final int URI_REVISION        = 7;
+    private static final int URI_REVISION_ITEM   = 8;
+
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
@@ -59,6 +76,8 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
+        mMatcher.addURI(Notes.AUTHORITY, "revision", URI_REVISION);
+        mMatcher.addURI(Notes.AUTHORITY, "revision/#", URI_REVISION_ITEM);
     }
 
     /**
@@ -79,6 +98,19 @@ public class NotesProvider extends ContentProvider {
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
         + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    private static final String[] REVISION_LIST_PROJECTION = new String[] {
+        RevisionColumns.ID,
+        RevisionColumns.NOTE_ID,
+        RevisionColumns.CREATED_DATE
+    };
+
+    private static final String[] REVISION_ITEM_PROJECTION = new String[] {
+        RevisionColumns.ID,
+        RevisionColumns.NOTE_ID,
+        RevisionColumns.CREATED_DATE,
+        RevisionColumns.CONTENT
+    };
+
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
@@ -94,7 +126,7 @@ public class NotesProvider extends ContentProvider {
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                        sortOrder, uri.getQueryParameter(Notes.QUERY_PARAMETER_LIMIT));
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -138,6 +170,15 @@ public class NotesProvider extends ContentProvider {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
                 break;
+            case URI_REVISION:
+                // The stored content of a revision may be a delta, it is not listed
+                c = db.query(TABLE.REVISION, REVISION_LIST_PROJECTION, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case URI_REVISION_ITEM:
+                id = uri.getPathSegments().get(1);
+                c = queryRevision(db, Long.valueOf(id), projection);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -162,20 +203,22 @@ public class NotesProvider extends ContentProvider {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
                 insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                if (dataId > 0 && noteId > 0
+                        && DataConstants.NOTE.equals(values.getAsString(DataColumns.MIME_TYPE))) {
+                    recordRevisions(db, DataColumns.ID + "=" + dataId, null);
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // Notify the note uri
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -220,9 +263,9 @@ public class NotesProvider extends ContentProvider {
         }
         if (count > 0) {
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
@@ -246,12 +289,19 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA:
                 count = db.update(TABLE.DATA, values, selection, selectionArgs);
+                if (count > 0 && values.containsKey(DataColumns.CONTENT)) {
+                    recordRevisions(db, selection, selectionArgs);
+                }
                 updateData = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
                 count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs);
+                if (count > 0 && values.containsKey(DataColumns.CONTENT)) {
+                    recordRevisions(db, DataColumns.ID + "=" + id + parseSelection(selection),
+                            selectionArgs);
+                }
                 updateData = true;
                 break;
             default:
@@ -260,13 +310,118 @@ public class NotesProvider extends ContentProvider {
 
         if (count > 0) {
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
 
+    /**
+     * Apply the operations in one transaction, so a batch is written with one
+     * commit, and completely or not at all. The changes are notified after
+     * the commit, once for each uri.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatchChanges.get() != null) {
+            // nested in a batch of this thread, which commits it
+            return super.applyBatch(operations);
+        }
+        LinkedHashSet<Uri> changes = new LinkedHashSet<Uri>();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+        for (Uri uri : changes) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Add the current text of the matching text data rows as a revision of
+     * their notes. Losing a revision is not worth failing the write for,
+     * unless the write is part of a batch, where a half written revision
+     * couldn't be rolled back alone
+     */
+    private void recordRevisions(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String where = DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'"
+                + parseSelection(selection);
+        Cursor c = null;
+        try {
+            c = db.query(TABLE.DATA, new String[] {
+                    DataColumns.NOTE_ID, DataColumns.CONTENT
+                }, where, selectionArgs, null, null, null);
+            while (c != null && c.moveToNext()) {
+                NoteRevisions.addRevision(db, c.getLong(0), c.getString(1));
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Record revision failed: " + e.toString());
+            if (db.inTransaction()) {
+                throw e;
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private Cursor queryRevision(SQLiteDatabase db, long revisionId, String[] projection) {
+        if (projection == null) {
+            projection = REVISION_ITEM_PROJECTION;
+        }
+        MatrixCursor result = new MatrixCursor(projection);
+        Cursor c = db.query(TABLE.REVISION, new String[] {
+                RevisionColumns.NOTE_ID, RevisionColumns.CREATED_DATE
+            }, RevisionColumns.ID + "=" + revisionId, null, null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    long noteId = c.getLong(0);
+                    String content = NoteRevisions.getContent(db, noteId, revisionId);
+                    if (content != null) {
+                        MatrixCursor.RowBuilder row = result.newRow();
+                        for (String column : projection) {
+                            if (RevisionColumns.ID.equals(column)) {
+                                row.add(revisionId);
+                            } else if (RevisionColumns.NOTE_ID.equals(column)) {
+                                row.add(noteId);
+                            } else if (RevisionColumns.CREATED_DATE.equals(column)) {
+                                row.add(c.getLong(1));
+                            } else if (RevisionColumns.CONTENT.equals(column)) {
+                                row.add(content);
+                            } else {
+                                throw new IllegalArgumentException("Unknown column " + column);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
@@ -17,6 +17,7 @@
 package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
+import android.util.JsonReader;
 import android.util.Log;
 
 import net.micode.notes.tool.GTaskStringUtils;
@@ -24,6 +25,8 @@ import net.micode.notes.tool.GTaskStringUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 
 /*
  * MetaData类，用于处理与Google Tasks相关的元数据信息。
@@ -36,8 +39,14 @@ public class MetaData extends Task {
     // 相关任务的全局唯一标识符，用于关联元数据与具体任务。
     private String mRelatedGid = null;
 
-    // 设置元数据信息，将给定的任务ID和元数据信息进行封装存储。
-    public void setMeta(String gid, JSONObject metaInfo) {
+    // 元数据内容的哈希值，用于快速判断内容是否变化。
+    private int mMetaHash = 0;
+
+    /*
+     * 设置元数据信息，将给定的任务ID和元数据信息进行封装存储。
+     * 返回内容是否有变化，没有变化时不必更新远程的元数据。
+     */
+    public boolean setMeta(String gid, JSONObject metaInfo) {
         try {
             // 将任务ID添加到元数据JSON对象中
             metaInfo.put(GTaskStringUtils.META_HEAD_GTASK_ID, gid);
@@ -45,10 +54,18 @@ public class MetaData extends Task {
             // 记录设置任务ID失败的错误日志
             Log.e(TAG, "failed to put related gid");
         }
+        String notes = metaInfo.toString();
+        int hash = notes.hashCode();
+        // 哈希值相同时再比较内容，排除哈希冲突
+        if (getNotes() != null && hash == mMetaHash && notes.equals(getNotes())) {
+            return false;
+        }
         // 将元数据信息转换为字符串并存储
-        setNotes(metaInfo.toString());
+        setNotes(notes);
+        mMetaHash = hash;
         // 设置元数据的名称
         setName(GTaskStringUtils.META_NOTE_NAME);
+        return true;
     }
 
     /*
@@ -70,7 +87,20 @@ public class MetaData extends Task {
     public void setContentByRemoteJSON(JSONObject js) {
         // 调用父类方法（super）设置基本内容
         super.setContentByRemoteJSON(js);
+        readRelatedGid();
+    }
+
+    // 从流中读取远程JSON对象设置元数据内容，同setContentByRemoteJSON。
+    @Override
+    public void setContentByRemoteReader(JsonReader reader) throws IOException {
+        super.setContentByRemoteReader(reader);
+        readRelatedGid();
+    }
+
+    // 从元数据内容中解析关联任务的ID。
+    private void readRelatedGid() {
         if (getNotes() != null) {
+            mMetaHash = getNotes().hashCode();
             try {
                 JSONObject metaInfo = new JSONObject(getNotes().trim());
                 mRelatedGid = metaInfo.getString(GTaskStringUtils.META_HEAD_GTASK_ID);
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/*
+ * SqlBatch类，收集SqlNote和SqlData的提交操作，一次在一个事务中写入数据库。
+ * 新建的笔记和数据在写入后才有ID，写入前它们的ID不可用。
+ */
+public class SqlBatch {
+    private static final String TAG = SqlBatch.class.getSimpleName();
+
+    // 超过此操作数时应尽快写入，避免事务过长阻塞其他写入
+    public static final int MAX_OPERATIONS = 500;
+
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    // 新建笔记和数据的插入操作位置，写入后设置它们的ID
+    private HashMap<Integer, SqlNote> mInsertedNotes;
+
+    private HashMap<Integer, SqlData> mInsertedData;
+
+    // 以指定ID新建的笔记和数据的ID
+    private HashSet<Long> mClaimedNoteIds;
+
+    private HashSet<Long> mClaimedDataIds;
+
+    public SqlBatch() {
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mInsertedNotes = new HashMap<Integer, SqlNote>();
+        mInsertedData = new HashMap<Integer, SqlData>();
+        mClaimedNoteIds = new HashSet<Long>();
+        mClaimedDataIds = new HashSet<Long>();
+    }
+
+    // 添加操作，返回其位置，供后续操作引用其插入的ID。
+    int add(ContentProviderOperation operation) {
+        mOperations.add(operation);
+        return mOperations.size() - 1;
+    }
+
+    // 添加新建笔记的插入操作。
+    int addNoteInsert(ContentProviderOperation operation, SqlNote note, Long id) {
+        int index = add(operation);
+        mInsertedNotes.put(index, note);
+        if (id != null) {
+            mClaimedNoteIds.add(id);
+        }
+        return index;
+    }
+
+    // 添加新建数据的插入操作。
+    int addDataInsert(ContentProviderOperation operation, SqlData data, Long id) {
+        int index = add(operation);
+        mInsertedData.put(index, data);
+        if (id != null) {
+            mClaimedDataIds.add(id);
+        }
+        return index;
+    }
+
+    // 判断该ID是否已被本批次中新建的笔记占用。
+    public boolean isNoteIdClaimed(long id) {
+        return mClaimedNoteIds.contains(id);
+    }
+
+    // 判断该ID是否已被本批次中新建的数据占用。
+    public boolean isDataIdClaimed(long id) {
+        return mClaimedDataIds.contains(id);
+    }
+
+    public boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    // 操作数达到上限时返回true。
+    public boolean isFull() {
+        return mOperations.size() >= MAX_OPERATIONS;
+    }
+
+    // 在一个事务中写入所有操作，设置新建笔记和数据的ID，然后清空批次。
+    public void apply(ContentResolver resolver) {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        // 失败的批次也不再重试，已在事务中回滚
+        try {
+            ContentProviderResult[] results;
+            try {
+                results = resolver.applyBatch(Notes.AUTHORITY, mOperations);
+            } catch (RemoteException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                throw new ActionFailureException("apply local batch failed");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                throw new ActionFailureException("apply local batch failed");
+            }
+            if (results == null || results.length != mOperations.size()) {
+                throw new ActionFailureException("apply local batch failed");
+            }
+
+            for (ContentProviderResult result : results) {
+                if (result.uri == null && result.count != null && result.count == 0) {
+                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                }
+            }
+            for (Map.Entry<Integer, SqlNote> entry : mInsertedNotes.entrySet()) {
+                entry.getValue().setInsertedId(getInsertedId(results[entry.getKey()]));
+            }
+            for (Map.Entry<Integer, SqlData> entry : mInsertedData.entrySet()) {
+                entry.getValue().setInsertedId(getInsertedId(results[entry.getKey()]));
+            }
+            Log.d(TAG, "applied " + mOperations.size() + " operations");
+        } finally {
+            clear();
+        }
+    }
+
+    private static long getInsertedId(ContentProviderResult result) {
+        long id = 0;
+        try {
+            if (result.uri != null) {
+                id = Long.valueOf(result.uri.getPathSegments().get(1));
+            }
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Get inserted id error :" + e.toString());
+        }
+        if (id <= 0) {
+            throw new ActionFailureException("create note failed");
+        }
+        return id;
+    }
+
+    // 丢弃未写入的操作。
+    public void clear() {
+        mOperations.clear();
+        mInsertedNotes.clear();
+        mInsertedData.clear();
+        mClaimedNoteIds.clear();
+        mClaimedDataIds.clear();
+    }
+}
@@ -16,12 +16,13 @@
 
 package net.micode.notes.gtask.data;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -29,7 +30,6 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
-import net.micode.notes.gtask.exception.ActionFailureException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -155,6 +155,11 @@ public class SqlData {
 
     // 获取数据内容。
     public JSONObject getContent() throws JSONException {
+        return getContent(false);
+    }
+
+    // 获取数据内容，compact为true时省略与setContent默认值相同的字段。
+    public JSONObject getContent(boolean compact) throws JSONException {
         if (mIsCreate) {
             Log.e(TAG, "it seems that we haven't created this in database yet");
             return null;
@@ -163,44 +168,48 @@ public class SqlData {
         js.put(DataColumns.ID, mDataId);
         js.put(DataColumns.MIME_TYPE, mDataMimeType);
         js.put(DataColumns.CONTENT, mDataContent);
-        js.put(DataColumns.DATA1, mDataContentData1);
-        js.put(DataColumns.DATA3, mDataContentData3);
+        if (!compact || mDataContentData1 != 0) {
+            js.put(DataColumns.DATA1, mDataContentData1);
+        }
+        if (!compact || !TextUtils.isEmpty(mDataContentData3)) {
+            js.put(DataColumns.DATA3, mDataContentData3);
+        }
         return js;
     }
 
-    // 提交数据变更。
-    public void commit(long noteId, boolean validateVersion, long version) {
+    // 将数据的提交加入批次。noteInsert不小于0时，笔记是同一批次中新建的，
+    // 其ID来自该位置的插入操作。
+    public void commit(long noteId, int noteInsert, boolean validateVersion, long version,
+            SqlBatch batch) {
 
         if (mIsCreate) {
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
                 mDiffDataValues.remove(DataColumns.ID);
             }
 
-            mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
-            Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
+            Long id = mDiffDataValues.getAsLong(DataColumns.ID);
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(mDiffDataValues);
+            if (noteInsert >= 0) {
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteInsert);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
             }
+            batch.addDataInsert(builder.build(), this, id);
+            mDataId = INVALID_ID;
         } else {
             if (mDiffDataValues.size() > 0) {
-                int result = 0;
-                if (!validateVersion) {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues, null, null);
-                } else {
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                        .withValues(mDiffDataValues);
+                if (validateVersion) {
+                    builder.withSelection(" ? in (SELECT " + NoteColumns.ID + " FROM "
+                            + TABLE.NOTE + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
                                     String.valueOf(noteId), String.valueOf(version)
                             });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                batch.add(builder.build());
             }
         }
 
@@ -208,6 +217,11 @@ public class SqlData {
         mIsCreate = false;
     }
 
+    // 新建数据的批次写入后设置其ID。
+    void setInsertedId(long id) {
+        mDataId = id;
+    }
+
     // 获取数据的ID。
     public long getId() {
         return mDataId;
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/*
+ * SqlDataSet类，用一次查询加载多条笔记的数据，按笔记ID分组后交给SqlNote，
+ * 避免为每条笔记单独查询数据表。
+ */
+public class SqlDataSet {
+    private static final String TAG = SqlDataSet.class.getSimpleName();
+
+    // 数据投影数组，在SqlData.PROJECTION_DATA之后加上笔记ID列。
+    private static final String[] PROJECTION_DATA_NOTE_ID;
+
+    // 笔记ID列的索引。
+    private static final int NOTE_ID_COLUMN;
+
+    static {
+        int length = SqlData.PROJECTION_DATA.length;
+        PROJECTION_DATA_NOTE_ID = new String[length + 1];
+        System.arraycopy(SqlData.PROJECTION_DATA, 0, PROJECTION_DATA_NOTE_ID, 0, length);
+        PROJECTION_DATA_NOTE_ID[length] = DataColumns.NOTE_ID;
+        NOTE_ID_COLUMN = length;
+    }
+
+    // 笔记ID到其数据列表的映射。
+    private HashMap<Long, ArrayList<SqlData>> mDataMap;
+
+    private SqlDataSet() {
+        mDataMap = new HashMap<Long, ArrayList<SqlData>>();
+    }
+
+    // 加载满足笔记查询条件的所有笔记的数据，条件作用于笔记表。
+    public static SqlDataSet query(Context context, String noteSelection, String[] selectionArgs) {
+        SqlDataSet dataSet = new SqlDataSet();
+        Cursor c = null;
+        try {
+            c = context.getContentResolver().query(Notes.CONTENT_DATA_URI,
+                    PROJECTION_DATA_NOTE_ID,
+                    "(" + DataColumns.NOTE_ID + " IN (SELECT " + NoteColumns.ID + " FROM "
+                            + TABLE.NOTE + " WHERE " + noteSelection + "))", selectionArgs,
+                    DataColumns.NOTE_ID + " ASC, " + DataColumns.ID + " ASC");
+            if (c != null) {
+                dataSet.load(context, c);
+            } else {
+                Log.w(TAG, "query: cursor = null");
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+        return dataSet;
+    }
+
+    // 加载指定笔记的数据。
+    public static SqlDataSet query(Context context, Collection<Long> noteIds) {
+        if (noteIds.isEmpty()) {
+            return new SqlDataSet();
+        }
+        return query(context, NoteColumns.ID + " IN (" + TextUtils.join(",", noteIds) + ")",
+                null);
+    }
+
+    // 结果按笔记ID排序，同一笔记的数据相邻。
+    private void load(Context context, Cursor c) {
+        long noteId = 0;
+        ArrayList<SqlData> dataList = null;
+        while (c.moveToNext()) {
+            if (dataList == null || c.getLong(NOTE_ID_COLUMN) != noteId) {
+                noteId = c.getLong(NOTE_ID_COLUMN);
+                dataList = new ArrayList<SqlData>();
+                mDataMap.put(noteId, dataList);
+            }
+            dataList.add(new SqlData(context, c));
+        }
+    }
+
+    // 取出笔记的数据，没有数据时返回空列表。每条笔记的数据只交出一次。
+    public ArrayList<SqlData> remove(long noteId) {
+        ArrayList<SqlData> dataList = mDataMap.remove(noteId);
+        return dataList != null ? dataList : new ArrayList<SqlData>();
+    }
+}
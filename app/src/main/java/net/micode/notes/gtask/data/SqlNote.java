@@ -17,17 +17,16 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
 
@@ -197,6 +196,16 @@ public class SqlNote {
         mDiffNoteValues = new ContentValues();
     }
 
+    // 构造方法，用于从数据库游标创建SqlNote对象，数据从批量加载的数据中取得。
+    public SqlNote(Context context, Cursor c, SqlDataSet dataSet) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mIsCreate = false;
+        mDataList = new ArrayList<SqlData>();
+        reload(c, dataSet);
+        mDiffNoteValues = new ContentValues();
+    }
+
     // 构造方法，用于根据笔记ID创建SqlNote对象。
     public SqlNote(Context context, long id) {
         mContext = context;
@@ -409,6 +418,15 @@ public class SqlNote {
 
     // 获取笔记内容。
     public JSONObject getContent() {
+        return getContent(false);
+    }
+
+    // 获取写入元数据的笔记内容，省略与setContent默认值相同的字段，减小元数据。
+    public JSONObject getMetaContent() {
+        return getContent(true);
+    }
+
+    private JSONObject getContent(boolean compact) {
         try {
             JSONObject js = new JSONObject();
 
@@ -420,22 +438,32 @@ public class SqlNote {
             JSONObject note = new JSONObject();
             if (mType == Notes.TYPE_NOTE) {
                 note.put(NoteColumns.ID, mId);
-                note.put(NoteColumns.ALERTED_DATE, mAlertDate);
+                if (!compact || mAlertDate != 0) {
+                    note.put(NoteColumns.ALERTED_DATE, mAlertDate);
+                }
                 note.put(NoteColumns.BG_COLOR_ID, mBgColorId);
                 note.put(NoteColumns.CREATED_DATE, mCreatedDate);
-                note.put(NoteColumns.HAS_ATTACHMENT, mHasAttachment);
+                if (!compact || mHasAttachment != 0) {
+                    note.put(NoteColumns.HAS_ATTACHMENT, mHasAttachment);
+                }
                 note.put(NoteColumns.MODIFIED_DATE, mModifiedDate);
                 note.put(NoteColumns.PARENT_ID, mParentId);
                 note.put(NoteColumns.SNIPPET, mSnippet);
                 note.put(NoteColumns.TYPE, mType);
-                note.put(NoteColumns.WIDGET_ID, mWidgetId);
-                note.put(NoteColumns.WIDGET_TYPE, mWidgetType);
-                note.put(NoteColumns.ORIGIN_PARENT_ID, mOriginParent);
+                if (!compact || mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
+                    note.put(NoteColumns.WIDGET_ID, mWidgetId);
+                }
+                if (!compact || mWidgetType != Notes.TYPE_WIDGET_INVALIDE) {
+                    note.put(NoteColumns.WIDGET_TYPE, mWidgetType);
+                }
+                if (!compact || mOriginParent != 0) {
+                    note.put(NoteColumns.ORIGIN_PARENT_ID, mOriginParent);
+                }
                 js.put(GTaskStringUtils.META_HEAD_NOTE, note);
 
                 JSONArray dataArray = new JSONArray();
                 for (SqlData sqlData : mDataList) {
-                    JSONObject data = sqlData.getContent();
+                    JSONObject data = sqlData.getContent(compact);
                     if (data != null) {
                         dataArray.put(data);
                     }
@@ -497,27 +525,24 @@ public class SqlNote {
         return mType == Notes.TYPE_NOTE;
     }
 
-    // 提交笔记数据。
-    public void commit(boolean validateVersion) {
+    // 将笔记数据的提交加入批次，批次写入数据库后才生效。新建笔记的ID在写入后才可用，
+    // 写入前不能再次提交。
+    public void commit(boolean validateVersion, SqlBatch batch) {
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
             }
 
-            Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, mDiffNoteValues);
-            try {
-                mId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
-            }
-            if (mId == 0) {
-                throw new IllegalStateException("Create thread id failed");
-            }
+            Long id = mDiffNoteValues.getAsLong(NoteColumns.ID);
+            int index = batch.addNoteInsert(ContentProviderOperation
+                    .newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(mDiffNoteValues)
+                    .build(), this, id);
+            mId = INVALID_ID;
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, false, -1);
+                    sqlData.commit(INVALID_ID, index, false, -1, batch);
                 }
             }
         } else {
@@ -527,37 +552,47 @@ public class SqlNote {
             }
             if (mDiffNoteValues.size() > 0) {
                 mVersion ++;
-                int result = 0;
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(Notes.CONTENT_NOTE_URI)
+                        .withValues(mDiffNoteValues);
                 if (!validateVersion) {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?)", new String[] {
+                    builder.withSelection("(" + NoteColumns.ID + "=?)", new String[] {
                         String.valueOf(mId)
                     });
                 } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
-                            new String[] {
+                    builder.withSelection("(" + NoteColumns.ID + "=?) AND ("
+                            + NoteColumns.VERSION + "<=?)", new String[] {
                                     String.valueOf(mId), String.valueOf(mVersion)
                             });
                 }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                batch.add(builder.build());
             }
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
+                    sqlData.commit(mId, -1, validateVersion, mVersion, batch);
                 }
             }
         }
 
-        // refresh local info
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
-
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    // 新建笔记的批次写入后设置其ID。
+    void setInsertedId(long id) {
+        mId = id;
+    }
+
+    // 从数据库游标重新加载笔记，数据从批量加载的数据中取得。
+    public void reload(Cursor c, SqlDataSet dataSet) {
+        loadFromCursor(c);
+        mDataList.clear();
+        if (mType == Notes.TYPE_NOTE) {
+            mDataList.addAll(dataSet.remove(mId));
+            if (mDataList.isEmpty()) {
+                Log.w(TAG, "it seems that the note has not data");
+            }
+        }
+    }
 }
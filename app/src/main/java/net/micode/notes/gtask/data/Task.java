@@ -18,6 +18,8 @@ package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -31,6 +33,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 /*
  * Task类，表示一个任务节点，继承自Node抽象类。
  * 该类负责处理任务的相关数据和操作，包括创建、更新、同步等。
@@ -188,6 +192,32 @@ public class Task extends Node {
         }
     }
 
+    // 从流中读取远程JSON对象设置任务内容，字段同setContentByRemoteJSON，其余字段跳过。
+    public void setContentByRemoteReader(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (GTaskStringUtils.GTASK_JSON_ID.equals(name)) {
+                setGid(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_LAST_MODIFIED.equals(name)) {
+                setLastModified(reader.nextLong());
+            } else if (GTaskStringUtils.GTASK_JSON_NAME.equals(name)) {
+                setName(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_NOTES.equals(name)) {
+                setNotes(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_DELETED.equals(name)) {
+                setDeleted(reader.nextBoolean());
+            } else if (GTaskStringUtils.GTASK_JSON_COMPLETED.equals(name)) {
+                setCompleted(reader.nextBoolean());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
     // 根据本地JSON数据设置任务内容。
     public void setContentByLocalJSON(JSONObject js) {
         if (js == null || !js.has(GTaskStringUtils.META_HEAD_NOTE)
@@ -17,6 +17,8 @@
 package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -27,6 +29,7 @@ import net.micode.notes.tool.GTaskStringUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 /*
@@ -139,6 +142,26 @@ public class TaskList extends Node {
         }
     }
 
+    // 从流中读取远程JSON对象设置任务列表内容，字段同setContentByRemoteJSON，其余字段跳过。
+    public void setContentByRemoteReader(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (GTaskStringUtils.GTASK_JSON_ID.equals(name)) {
+                setGid(reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_LAST_MODIFIED.equals(name)) {
+                setLastModified(reader.nextLong());
+            } else if (GTaskStringUtils.GTASK_JSON_NAME.equals(name)) {
+                setName(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
     // 根据本地JSON数据设置任务列表内容。
     public void setContentByLocalJSON(JSONObject js) {
         if (js == null || !js.has(GTaskStringUtils.META_HEAD_NOTE)) {
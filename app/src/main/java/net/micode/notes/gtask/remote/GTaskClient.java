@@ -22,8 +22,11 @@ import android.accounts.AccountManagerFuture;
 import android.app.Activity;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
+import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
@@ -35,17 +38,10 @@ import net.micode.notes.ui.NotesPreferenceActivity;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -54,8 +50,21 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.LinkedList;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -70,9 +79,51 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    // Task lists downloaded at once by getTaskLists(List, CancelSignal)
+    public static final int DEFAULT_FETCH_CONCURRENCY = 4;
+
+    // How often a parallel download checks whether it is cancelled
+    private static final long CANCEL_CHECK_INTERVAL = 200;
+
+    private static final int MIN_BATCH_ACTIONS = 10;
+
+    private static final int MAX_BATCH_ACTIONS = 100;
+
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    // Gid of a node until its creation is committed, later actions of the
+    // same request refer to it by this
+    private static final String TEMP_ID_PREFIX = "temp_";
+
+    /**
+     * Tells a parallel download whether the sync has been cancelled
+     */
+    public interface CancelSignal {
+        boolean isCancelled();
+    }
+
+    /**
+     * Turns the body of a response into what the request returns, reading it
+     * as it arrives
+     */
+    private interface ResponseDecoder<T> {
+        T decode(Reader in) throws IOException, JSONException;
+    }
+
+    private static final ResponseDecoder<JSONObject> JSON_OBJECT_DECODER =
+            new ResponseDecoder<JSONObject>() {
+                public JSONObject decode(Reader in) throws IOException, JSONException {
+                    return new JSONObject(readContent(in));
+                }
+            };
+
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    private GTaskTransport mTransport;
+
+    // Whether the transport was set by setTransport, rather than created at
+    // login
+    private boolean mCustomTransport;
 
     private String mGetUrl;
 
@@ -84,22 +135,50 @@ public class GTaskClient {
 
     private long mLastLoginTime;
 
-    private int mActionId;
+    private AtomicInteger mActionId;
 
     private Account mAccount;
 
+    // Guards the queued actions, held while they are posted so they keep
+    // their order
+    private final Object mUpdateLock = new Object();
+
     private JSONArray mUpdateArray;
 
+    // Length of the queued actions, as sent
+    private int mUpdateBytes;
+
+    // Nodes created by the queued actions, by temporary gid
+    private LinkedHashMap<String, Node> mCreatedNodes;
+
+    // Actions sent in one request at most, it grows while requests succeed
+    // and shrinks after a failure
+    private int mBatchLimit;
+
+    private int mFetchConcurrency;
+
+    private boolean mGzipRequests;
+
+    // Requests being posted, aborted when a parallel download is cancelled
+    private final Set<HttpPost> mRunningPosts;
+
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = null;
+        mCustomTransport = false;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
         mLoggedin = false;
         mLastLoginTime = 0;
-        mActionId = 1;
+        mActionId = new AtomicInteger(1);
         mAccount = null;
         mUpdateArray = null;
+        mUpdateBytes = 0;
+        mCreatedNodes = new LinkedHashMap<String, Node>();
+        mBatchLimit = MIN_BATCH_ACTIONS;
+        mFetchConcurrency = DEFAULT_FETCH_CONCURRENCY;
+        mGzipRequests = false;
+        mRunningPosts = Collections.synchronizedSet(new HashSet<HttpPost>());
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -226,25 +305,26 @@ public class GTaskClient {
     }
 
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // a new session, pooled so the task lists can be downloaded in
+        // parallel
+        if (mCustomTransport) {
+            mTransport.getCookieStore().clear();
+        } else {
+            if (mTransport != null) {
+                mTransport.shutdown();
+            }
+            mTransport = new PooledHttpTransport(mFetchConcurrency);
+        }
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
             HttpGet httpGet = new HttpGet(loginUrl);
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = mTransport.execute(httpGet);
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
+            List<Cookie> cookies = mTransport.getCookieStore().getCookies();
             boolean hasAuthCookie = false;
             for (Cookie cookie : cookies) {
                 if (cookie.getName().contains("GTL")) {
@@ -281,7 +361,40 @@ public class GTaskClient {
     }
 
     private int getActionId() {
-        return mActionId++;
+        return mActionId.getAndIncrement();
+    }
+
+    /**
+     * Set how many task lists are downloaded at once, takes effect at the
+     * next login
+     */
+    public void setFetchConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Wrong fetch concurrency " + concurrency);
+        }
+        mFetchConcurrency = concurrency;
+    }
+
+    /**
+     * Send the requests with the transport from the next login on, e.g. one
+     * to a local stand-in server. Null goes back to a PooledHttpTransport
+     * created at each login.
+     */
+    public void setTransport(GTaskTransport transport) {
+        mLoggedin = false;
+        if (mTransport != null && !mCustomTransport) {
+            mTransport.shutdown();
+        }
+        mTransport = transport;
+        mCustomTransport = transport != null;
+    }
+
+    /**
+     * Set whether the bodies of the requests are gzipped, off by default as
+     * not every server takes them
+     */
+    public void setGzipRequests(boolean gzip) {
+        mGzipRequests = gzip;
     }
 
     private HttpPost createHttpPost() {
@@ -292,6 +405,15 @@ public class GTaskClient {
     }
 
     private String getResponseContent(HttpEntity entity) throws IOException {
+        Reader in = getResponseReader(entity);
+        try {
+            return readContent(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Reader getResponseReader(HttpEntity entity) throws IOException {
         String contentEncoding = null;
         if (entity.getContentEncoding() != null) {
             contentEncoding = entity.getContentEncoding().getValue();
@@ -305,42 +427,103 @@ public class GTaskClient {
             Inflater inflater = new Inflater(true);
             input = new InflaterInputStream(entity.getContent(), inflater);
         }
+        return new BufferedReader(new InputStreamReader(input));
+    }
 
-        try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
+    private static String readContent(Reader in) throws IOException {
+        BufferedReader br = new BufferedReader(in);
+        StringBuilder sb = new StringBuilder();
+
+        while (true) {
+            String buff = br.readLine();
+            if (buff == null) {
+                return sb.toString();
             }
-        } finally {
-            input.close();
+            sb = sb.append(buff);
         }
     }
 
+    private static JsonReader newJsonReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        // as tolerant as org.json
+        reader.setLenient(true);
+        return reader;
+    }
+
     private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+        return postRequest(js, JSON_OBJECT_DECODER, false);
+    }
+
+    /**
+     * Post the request, a read is retried if it fails on the network, a
+     * write never is as it may have been done
+     */
+    private <T> T postRequest(JSONObject js, ResponseDecoder<T> decoder, boolean read)
+            throws NetworkFailureException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return postRequestOnce(js, decoder);
+            } catch (NetworkFailureException e) {
+                if (!read || !waitToRetry(attempt)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Wait before the retry, false if there should be none
+    private boolean waitToRetry(int attempt) {
+        long delay = mTransport.getRetryDelay(attempt);
+        // interrupted when a parallel download is cancelled
+        if (delay < 0 || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        Log.w(TAG, "retry " + (attempt + 1) + " in " + delay + "ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    // A server error is a network failure, so a read is retried
+    private static void checkStatus(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 500) {
+            EntityUtils.consume(response.getEntity());
+            throw new IOException("server error " + status);
+        }
+    }
+
+    private <T> T postRequestOnce(JSONObject js, ResponseDecoder<T> decoder)
+            throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
         HttpPost httpPost = createHttpPost();
+        mRunningPosts.add(httpPost);
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
+            // serialized as it's sent
+            httpPost.setEntity(new JsonFormEntity("r", js, mGzipRequests));
 
             // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
+            HttpResponse response = mTransport.execute(httpPost);
+            checkStatus(response);
+            Reader in = getResponseReader(response.getEntity());
+            try {
+                return decoder.decode(in);
+            } finally {
+                in.close();
+            }
 
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("unable to convert response content to jsonobject");
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -357,102 +540,145 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("error occurs when posting request");
+        } finally {
+            mRunningPosts.remove(httpPost);
         }
     }
 
+    /**
+     * Queue the creation of the task. Its gid is a temporary one until the
+     * batch is committed, later actions of the batch can refer to it.
+     */
     public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
-        }
+        queueCreate(task);
     }
 
+    /**
+     * Queue the creation of the task list, see {@link #createTask}
+     */
     public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
-        }
+        queueCreate(tasklist);
     }
 
-    public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
+    private void queueCreate(Node node) throws NetworkFailureException {
+        synchronized (mUpdateLock) {
+            int actionId = getActionId();
+            JSONObject action = node.getCreateAction(actionId);
+            String tempId = TEMP_ID_PREFIX + actionId;
             try {
-                JSONObject jsPost = new JSONObject();
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
-
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-                postRequest(jsPost);
-                mUpdateArray = null;
+                action.put(GTaskStringUtils.GTASK_JSON_ID, tempId);
             } catch (JSONException e) {
                 Log.e(TAG, e.toString());
                 e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
+                throw new ActionFailureException("create node: handing jsonobject failed");
+            }
+            queueAction(action);
+            node.setGid(tempId);
+            mCreatedNodes.put(tempId, node);
+        }
+    }
+
+    /**
+     * Whether the gid is a temporary one of a node whose creation is not
+     * committed yet
+     */
+    public static boolean isTempGid(String gid) {
+        return gid != null && gid.startsWith(TEMP_ID_PREFIX);
+    }
+
+    /**
+     * Send the queued actions, the nodes they create get their gids
+     */
+    public void commitUpdate() throws NetworkFailureException {
+        synchronized (mUpdateLock) {
+            if (mUpdateArray != null) {
+                try {
+                    JSONObject jsPost = new JSONObject();
+
+                    // action_list
+                    jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
+
+                    // client_version
+                    jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+
+                    JSONObject jsResponse = postRequest(jsPost);
+                    setCreatedGids(jsResponse);
+                    Log.d(TAG, "commit " + mUpdateArray.length() + " actions, "
+                            + mUpdateBytes + " bytes");
+                    mUpdateArray = null;
+                    mUpdateBytes = 0;
+                    mBatchLimit = Math.min(mBatchLimit * 2, MAX_BATCH_ACTIONS);
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString());
+                    e.printStackTrace();
+                    mBatchLimit = MIN_BATCH_ACTIONS;
+                    throw new ActionFailureException("commit update: handing jsonobject failed");
+                } catch (NetworkFailureException e) {
+                    mBatchLimit = Math.max(mBatchLimit / 2, MIN_BATCH_ACTIONS);
+                    throw e;
+                } catch (ActionFailureException e) {
+                    mBatchLimit = MIN_BATCH_ACTIONS;
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void setCreatedGids(JSONObject jsResponse) throws JSONException {
+        if (mCreatedNodes.isEmpty()) {
+            return;
+        }
+        ArrayList<Node> nodes = new ArrayList<Node>(mCreatedNodes.values());
+        int next = 0;
+        JSONArray jsResults = jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+        for (int i = 0; i < jsResults.length() && !mCreatedNodes.isEmpty(); i++) {
+            JSONObject jsResult = jsResults.getJSONObject(i);
+            if (!jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                continue;
             }
+            Node node = mCreatedNodes.remove(jsResult.optString(GTaskStringUtils.GTASK_JSON_ID));
+            if (node == null) {
+                // a result without the temporary id is the one of the next
+                // create of the batch
+                while (!mCreatedNodes.containsKey(nodes.get(next).getGid())) {
+                    next++;
+                }
+                node = mCreatedNodes.remove(nodes.get(next).getGid());
+            }
+            node.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        }
+        if (!mCreatedNodes.isEmpty()) {
+            Log.e(TAG, mCreatedNodes.size() + " created nodes without new id");
+            throw new ActionFailureException("commit update: created nodes without new id");
         }
     }
 
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
+            synchronized (mUpdateLock) {
+                queueAction(node.getUpdateAction(getActionId()));
             }
+        }
+    }
 
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+    private void queueAction(JSONObject action) throws NetworkFailureException {
+        // too many actions in a request may result in an error, the batch is
+        // sent once it has as many actions as the current limit or is too big
+        int bytes = action.toString().length();
+        if (mUpdateArray != null && (mUpdateArray.length() >= mBatchLimit
+                || mUpdateBytes + bytes > MAX_BATCH_BYTES)) {
+            commitUpdate();
         }
+
+        if (mUpdateArray == null)
+            mUpdateArray = new JSONArray();
+        mUpdateArray.put(action);
+        mUpdateBytes += bytes;
     }
 
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
             // action_list
@@ -463,7 +689,8 @@ public class GTaskClient {
             if (preParent == curParent && task.getPriorSibling() != null) {
                 // put prioring_sibing_id only if moving within the tasklist and
                 // it is not the first one
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling());
+                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                        task.getPriorSibling().getGid());
             }
             action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
             action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
@@ -471,14 +698,9 @@ public class GTaskClient {
                 // put the dest_list only if moving between tasklists
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
-
+            synchronized (mUpdateLock) {
+                queueAction(action);
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -487,29 +709,27 @@ public class GTaskClient {
     }
 
     public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        node.setDeleted(true);
+        addUpdateNode(node);
+    }
 
-            postRequest(jsPost);
-            mUpdateArray = null;
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+    /**
+     * Read the task lists of the account, without their tasks, from the
+     * setup script of the tasks page
+     */
+    public ArrayList<TaskList> getTaskLists() throws NetworkFailureException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return getTaskListsOnce();
+            } catch (NetworkFailureException e) {
+                if (!waitToRetry(attempt)) {
+                    throw e;
+                }
+            }
         }
     }
 
-    public JSONArray getTaskLists() throws NetworkFailureException {
+    private ArrayList<TaskList> getTaskListsOnce() throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
@@ -518,20 +738,27 @@ public class GTaskClient {
         try {
             HttpGet httpGet = new HttpGet(mGetUrl);
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = mTransport.execute(httpGet);
+            checkStatus(response);
 
-            // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
+            // get the task list, only the start of the page is read
+            ArrayList<TaskList> lists = null;
+            Reader in = getResponseReader(response.getEntity());
+            try {
+                if (skipPast(in, "_setup(")) {
+                    lists = readTaskLists(newJsonReader(in));
+                }
+            } finally {
+                in.close();
             }
-            JSONObject js = new JSONObject(jsString);
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
+            if (lists == null) {
+                throw new ActionFailureException("get task lists: no task lists in the page");
+            }
+            return lists;
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("get task lists: handing jasonobject failed");
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -540,17 +767,70 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new NetworkFailureException("gettasklists: httpget failed");
-        } catch (JSONException e) {
+        } catch (IllegalStateException | NumberFormatException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task lists: handing jasonobject failed");
         }
     }
 
-    public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+    // Skip the chars up to the end of the marker, false if it's not found
+    private static boolean skipPast(Reader in, String marker) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == marker.charAt(matched)) {
+                if (++matched == marker.length()) {
+                    return true;
+                }
+            } else {
+                matched = c == marker.charAt(0) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    // Read t.lists of the setup object, null if it has none
+    private static ArrayList<TaskList> readTaskLists(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"t".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!GTaskStringUtils.GTASK_JSON_LISTS.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                ArrayList<TaskList> lists = new ArrayList<TaskList>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    TaskList list = new TaskList();
+                    list.setContentByRemoteReader(reader);
+                    lists.add(list);
+                }
+                reader.endArray();
+                // the rest of the page is not needed
+                return lists;
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return null;
+    }
+
+    /**
+     * Download the tasks of the list. They are decoded as the response
+     * arrives, into MetaData if it's the meta list, with no copy of the whole
+     * response held at any time.
+     */
+    public ArrayList<Task> getTaskList(String listGid, final boolean metaList)
+            throws NetworkFailureException {
         commitUpdate();
+        JSONObject jsPost = new JSONObject();
         try {
-            JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
@@ -565,14 +845,120 @@ public class GTaskClient {
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task list: handing jsonobject failed");
         }
+
+        ArrayList<Task> tasks = postRequest(jsPost, new ResponseDecoder<ArrayList<Task>>() {
+            public ArrayList<Task> decode(Reader in) throws IOException {
+                return readTasks(newJsonReader(in), metaList);
+            }
+        }, true);
+        if (tasks == null) {
+            throw new ActionFailureException("get task list: no tasks in the response");
+        }
+        return tasks;
+    }
+
+    // Read the tasks of a getall response, null if it has none
+    static ArrayList<Task> readTasks(JsonReader reader, boolean metaList) throws IOException {
+        ArrayList<Task> tasks = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!GTaskStringUtils.GTASK_JSON_TASKS.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            tasks = new ArrayList<Task>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Task task = metaList ? new MetaData() : new Task();
+                task.setContentByRemoteReader(reader);
+                tasks.add(task);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return tasks;
+    }
+
+    /**
+     * Download the tasks of the lists, up to the fetch concurrency at once.
+     * The results are in the order of the gids, the tasks of the meta list
+     * are MetaData. Returns null if the signal tells the sync is cancelled,
+     * the requests in flight are aborted then.
+     */
+    public List<ArrayList<Task>> getTaskLists(List<String> listGids, String metaListGid,
+            CancelSignal signal) throws NetworkFailureException {
+        ArrayList<ArrayList<Task>> results = new ArrayList<ArrayList<Task>>(listGids.size());
+        if (listGids.isEmpty()) {
+            return results;
+        }
+        commitUpdate();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mFetchConcurrency, listGids.size()));
+        boolean done = false;
+        try {
+            ArrayList<Future<ArrayList<Task>>> futures = new ArrayList<Future<ArrayList<Task>>>();
+            for (final String gid : listGids) {
+                final boolean metaList = gid.equals(metaListGid);
+                futures.add(executor.submit(new Callable<ArrayList<Task>>() {
+                    public ArrayList<Task> call() throws NetworkFailureException {
+                        return getTaskList(gid, metaList);
+                    }
+                }));
+            }
+            for (Future<ArrayList<Task>> future : futures) {
+                ArrayList<Task> result = await(future, signal);
+                if (result == null) {
+                    Log.d(TAG, "getTaskLists: cancelled");
+                    return null;
+                }
+                results.add(result);
+            }
+            done = true;
+            return results;
+        } finally {
+            executor.shutdownNow();
+            if (!done) {
+                abortRunningPosts();
+            }
+        }
+    }
+
+    private <T> T await(Future<T> future, CancelSignal signal)
+            throws NetworkFailureException {
+        while (!signal.isCancelled()) {
+            try {
+                return future.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // check the signal again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkFailureException("gettasklists: interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof NetworkFailureException) {
+                    throw (NetworkFailureException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                Log.e(TAG, cause.toString());
+                throw new ActionFailureException("get task lists: " + cause.toString());
+            }
+        }
+        return null;
+    }
+
+    private void abortRunningPosts() {
+        synchronized (mRunningPosts) {
+            for (HttpPost httpPost : mRunningPosts) {
+                httpPost.abort();
+            }
+        }
     }
 
     public Account getSyncAccount() {
@@ -580,6 +966,10 @@ public class GTaskClient {
     }
 
     public void resetUpdateArray() {
-        mUpdateArray = null;
+        synchronized (mUpdateLock) {
+            mUpdateArray = null;
+            mUpdateBytes = 0;
+            mCreatedNodes.clear();
+        }
     }
 }
@@ -19,9 +19,9 @@ package net.micode.notes.gtask.remote;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
@@ -30,6 +30,8 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.SqlBatch;
+import net.micode.notes.gtask.data.SqlDataSet;
 import net.micode.notes.gtask.data.SqlNote;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
@@ -42,9 +44,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -71,7 +76,10 @@ public class GTaskManager {
 
     private boolean mSyncing;
 
-    private boolean mCancelled;
+    // Set by the thread cancelling the sync
+    private volatile boolean mCancelled;
+
+    private GTaskClient.CancelSignal mCancelSignal;
 
     private HashMap<String, TaskList> mGTaskListHashMap;
 
@@ -87,9 +95,44 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    // Whether every list is downloaded, otherwise only the changed ones
+    private boolean mFullSync;
+
+    private SyncWatermarks mWatermarks;
+
+    // Lists whose tasks were not downloaded as nothing changed in them
+    private HashSet<String> mSkippedListGids;
+
+    // Nodes written remotely by this sync, and the lists holding them,
+    // whose last modified time is to be read again
+    private HashSet<Node> mTouchedNodes;
+
+    // Nodes created by this sync whose gids are not written to their notes
+    // yet, by note id
+    private HashMap<Long, Node> mCreatedNodes;
+
+    // Notes of the created tasks, whose metas are added once the tasks have
+    // their gids
+    private HashMap<Task, SqlNote> mPendingMetas;
+
+    // Local writes of the sync, applied a batch at a time in one transaction
+    private SqlBatch mLocalBatch;
+
+    // Notes written locally by the batch, mapped to their nodes and whose
+    // metas are updated once it's applied
+    private LinkedHashMap<Node, SqlNote> mLocalWrites;
+
+    // Data of the notes being synced, loaded at once instead of note by note
+    private SqlDataSet mDataSet;
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
+        mCancelSignal = new GTaskClient.CancelSignal() {
+            public boolean isCancelled() {
+                return mCancelled;
+            }
+        };
         mGTaskListHashMap = new HashMap<String, TaskList>();
         mGTaskHashMap = new HashMap<String, Node>();
         mMetaHashMap = new HashMap<String, MetaData>();
@@ -97,6 +140,12 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mSkippedListGids = new HashSet<String>();
+        mTouchedNodes = new HashSet<Node>();
+        mCreatedNodes = new HashMap<Long, Node>();
+        mPendingMetas = new HashMap<Task, SqlNote>();
+        mLocalBatch = new SqlBatch();
+        mLocalWrites = new LinkedHashMap<Node, SqlNote>();
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -126,6 +175,10 @@ public class GTaskManager {
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mSkippedListGids.clear();
+        mTouchedNodes.clear();
+        mCreatedNodes.clear();
+        mPendingMetas.clear();
 
         try {
             GTaskClient client = GTaskClient.getInstance();
@@ -138,6 +191,10 @@ public class GTaskManager {
                 }
             }
 
+            mWatermarks = new SyncWatermarks(mContext, client.getSyncAccount().name);
+            mFullSync = mWatermarks.isFullSyncDue(System.currentTimeMillis());
+            Log.d(TAG, mFullSync ? "full sync" : "incremental sync");
+
             // get the task list from google
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
             initGTaskList();
@@ -156,12 +213,34 @@ public class GTaskManager {
             e.printStackTrace();
             return STATE_INTERNAL_ERROR;
         } finally {
+            // the local writes still queued after a failure or a cancel
+            // record remote actions which may not be committed, they are
+            // dropped and done again by the next sync
+            if (!mLocalBatch.isEmpty()) {
+                Log.d(TAG, "drop the local writes not applied");
+            }
+
+            // the nodes created by the committed batches exist remotely,
+            // saveCreatedGids leaves the others out
+            if (!mCreatedNodes.isEmpty()) {
+                try {
+                    saveCreatedGids();
+                } catch (ActionFailureException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mSkippedListGids.clear();
+            mTouchedNodes.clear();
+            mCreatedNodes.clear();
+            mPendingMetas.clear();
+            mLocalBatch.clear();
+            mLocalWrites.clear();
             mSyncing = false;
         }
 
@@ -172,79 +251,227 @@ public class GTaskManager {
         if (mCancelled)
             return;
         GTaskClient client = GTaskClient.getInstance();
-        try {
-            JSONArray jsTaskLists = client.getTaskLists();
-
-            // init meta list first
-            mMetaList = null;
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name
-                        .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
-                    }
+        ArrayList<TaskList> remoteLists = client.getTaskLists();
+
+        // init meta list first
+        mMetaList = null;
+        for (TaskList tasklist : remoteLists) {
+            if (tasklist.getName()
+                    .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                mMetaList = tasklist;
+            }
+        }
+
+        // init task list, in an incremental sync only the lists changed
+        // remotely or holding local changes are downloaded
+        mSkippedListGids.clear();
+        HashSet<String> localChangedListGids = mFullSync ? null : getLocalChangedListGids();
+        ArrayList<TaskList> loadLists = new ArrayList<TaskList>();
+        for (TaskList tasklist : remoteLists) {
+            String gid = tasklist.getGid();
+            String name = tasklist.getName();
+
+            if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
+                    && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                            + GTaskStringUtils.FOLDER_META)) {
+                mGTaskListHashMap.put(gid, tasklist);
+                mGTaskHashMap.put(gid, tasklist);
+
+                if (mFullSync || localChangedListGids.contains(gid)
+                        || !mWatermarks.isUnchanged(tasklist)) {
+                    loadLists.add(tasklist);
+                } else {
+                    mSkippedListGids.add(gid);
                 }
             }
+        }
 
+        // download the meta list with the task lists, all in parallel. The
+        // meta list holds the whole content of every note, so it's only
+        // downloaded when a downloaded task or a delete needs its meta
+        boolean loadMeta = mMetaList != null
+                && (!loadLists.isEmpty() || isMetaNeededForDeletes());
+        if (!loadMeta && mMetaList != null) {
+            Log.d(TAG, "no task list changed, skip the meta list");
+        }
+        if (!loadTaskLists(loadLists, loadMeta)) {
+            return;
+        }
+        if (mMetaList == null) {
             // create meta list if not existed
-            if (mMetaList == null) {
-                mMetaList = new TaskList();
-                mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                        + GTaskStringUtils.FOLDER_META);
-                GTaskClient.getInstance().createTaskList(mMetaList);
-            }
-
-            // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
-                        }
+            mMetaList = new TaskList();
+            mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META);
+            GTaskClient.getInstance().createTaskList(mMetaList);
+            loadMeta = true;
+        }
+
+        // a local change whose task is not found may be in a skipped
+        // list, e.g. a note moved out of it, so fall back to all lists
+        if (!mSkippedListGids.isEmpty() && !isLocalChangesLoaded()) {
+            Log.d(TAG, "local changes not in the changed lists, load all the lists");
+            loadLists.clear();
+            for (String gid : mSkippedListGids) {
+                loadLists.add(mGTaskListHashMap.get(gid));
+            }
+            if (!loadTaskLists(loadLists, !loadMeta)) {
+                return;
+            }
+            mSkippedListGids.clear();
+        }
+        Log.d(TAG, "skip " + mSkippedListGids.size() + " unchanged task lists");
+    }
+
+    /**
+     * Download the tasks of the lists in parallel, and the meta list first if
+     * {@code loadMeta}, so the tasks take their meta. Returns false if the
+     * sync has been cancelled meanwhile.
+     */
+    private boolean loadTaskLists(List<TaskList> loadLists, boolean loadMeta)
+            throws NetworkFailureException {
+        ArrayList<String> gids = new ArrayList<String>();
+        if (loadMeta) {
+            gids.add(mMetaList.getGid());
+        }
+        for (TaskList tasklist : loadLists) {
+            gids.add(tasklist.getGid());
+        }
+        List<ArrayList<Task>> results = GTaskClient.getInstance().getTaskLists(gids,
+                loadMeta ? mMetaList.getGid() : null, mCancelSignal);
+        if (results == null) {
+            return false;
+        }
+
+        // load meta data, before the tasks which take it
+        int index = 0;
+        if (loadMeta) {
+            for (Task task : results.get(index++)) {
+                MetaData metaData = (MetaData) task;
+                if (metaData.isWorthSaving()) {
+                    mMetaList.addChildTask(metaData);
+                    if (metaData.getGid() != null) {
+                        mMetaHashMap.put(metaData.getRelatedGid(), metaData);
                     }
                 }
             }
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("initGTaskList: handing JSONObject failed");
         }
+        for (TaskList tasklist : loadLists) {
+            addTasks(tasklist, results.get(index++));
+        }
+        return true;
+    }
+
+    /**
+     * Whether the sync deletes synced notes whose meta has to be deleted
+     * too, i.e. notes in the trash or in a folder whose list has been
+     * removed remotely
+     */
+    private boolean isMetaNeededForDeletes() {
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.ID
+                }, "(type=? AND gtask_id<>'' AND parent_id=?)", new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                }, null);
+        if (c == null) {
+            throw new ActionFailureException("failed to query locally deleted notes");
+        }
+        try {
+            if (c.getCount() > 0) {
+                return true;
+            }
+        } finally {
+            c.close();
+        }
+
+        c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.GTASK_ID
+                }, "(type=? AND gtask_id<>'' AND parent_id<>?)", new String[] {
+                    String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
+                }, null);
+        if (c == null) {
+            throw new ActionFailureException("failed to query synced folders");
+        }
+        try {
+            while (c.moveToNext()) {
+                if (!mGTaskListHashMap.containsKey(c.getString(0))) {
+                    return true;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return false;
+    }
+
+    private void addTasks(TaskList tasklist, List<Task> tasks) {
+        for (Task task : tasks) {
+            String gid = task.getGid();
+            if (task.isWorthSaving()) {
+                task.setMetaInfo(mMetaHashMap.get(gid));
+                tasklist.addChildTask(task);
+                mGTaskHashMap.put(gid, task);
+            }
+        }
+    }
+
+    /**
+     * Gids of the lists of the folders holding notes modified or added
+     * locally since the last sync
+     */
+    private HashSet<String> getLocalChangedListGids() {
+        HashSet<String> gids = new HashSet<String>();
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.GTASK_ID
+                }, "(_id IN (SELECT parent_id FROM note WHERE type=? AND parent_id<>?"
+                        + " AND (local_modified=1 OR gtask_id='')))", new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                }, null);
+        if (c == null) {
+            throw new ActionFailureException("failed to query locally changed folders");
+        }
+        try {
+            while (c.moveToNext()) {
+                gids.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return gids;
+    }
+
+    /**
+     * Whether the tasks of all the synced notes changed or deleted locally
+     * have been downloaded
+     */
+    private boolean isLocalChangesLoaded() {
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                    NoteColumns.GTASK_ID
+                }, "(type=? AND gtask_id<>'' AND (local_modified=1 OR parent_id=?))",
+                new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                }, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (!mGTaskHashMap.containsKey(c.getString(0))) {
+                    return false;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    /**
+     * Whether the note is in a list skipped by an incremental sync, then its
+     * task was not downloaded although it exists
+     */
+    private boolean isInSkippedList(Cursor c) {
+        String parentGid = mNidToGid.get(c.getLong(SqlNote.PARENT_ID_COLUMN));
+        return parentGid != null && mSkippedListGids.contains(parentGid);
     }
 
     private void syncContent() throws NetworkFailureException {
@@ -291,11 +518,15 @@ public class GTaskManager {
 
         // for note existing in database
         try {
+            String selection = "(type=? AND parent_id<>?)";
+            String[] selectionArgs = new String[] {
+                    String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+            };
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    selection, selectionArgs, NoteColumns.TYPE + " DESC");
             if (c != null) {
+                mDataSet = SqlDataSet.query(mContext, selection, selectionArgs);
+
                 while (c.moveToNext()) {
                     gid = c.getString(SqlNote.GTASK_ID_COLUMN);
                     node = mGTaskHashMap.get(gid);
@@ -308,6 +539,9 @@ public class GTaskManager {
                         if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
                             // local add
                             syncType = Node.SYNC_ACTION_ADD_REMOTE;
+                        } else if (isInSkippedList(c)) {
+                            // unchanged on both sides
+                            syncType = Node.SYNC_ACTION_NONE;
                         } else {
                             // remote delete
                             syncType = Node.SYNC_ACTION_DEL_LOCAL;
@@ -320,6 +554,7 @@ public class GTaskManager {
             }
 
         } finally {
+            mDataSet = null;
             if (c != null) {
                 c.close();
                 c = null;
@@ -336,7 +571,13 @@ public class GTaskManager {
 
         // mCancelled can be set by another thread, so we neet to check one by
         // one
-        // clear local delete table
+        // send the remote changes left, then write the local ones
+        if (!mCancelled) {
+            applyLocalBatch();
+            GTaskClient.getInstance().commitUpdate();
+        }
+
+        // clear local delete table, the remote deletes are committed
         if (!mCancelled) {
             if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
                 throw new ActionFailureException("failed to batch-delete local deleted notes");
@@ -345,7 +586,8 @@ public class GTaskManager {
 
         // refresh local sync id
         if (!mCancelled) {
-            GTaskClient.getInstance().commitUpdate();
+            addPendingMetas();
+            saveCreatedGids();
             refreshLocalSyncId();
         }
 
@@ -472,8 +714,10 @@ public class GTaskManager {
             }
         }
 
-        if (!mCancelled)
-            GTaskClient.getInstance().commitUpdate();
+        // the notes take the ids of the folders
+        if (!mCancelled) {
+            applyLocalBatch();
+        }
     }
 
     private void doContentSync(int syncType, Node node, Cursor c) throws NetworkFailureException {
@@ -502,6 +746,7 @@ public class GTaskManager {
                     GTaskClient.getInstance().deleteNode(meta);
                 }
                 GTaskClient.getInstance().deleteNode(node);
+                touch(node);
                 break;
             case Node.SYNC_ACTION_UPDATE_LOCAL:
                 updateLocalNode(node, c);
@@ -520,6 +765,74 @@ public class GTaskManager {
             default:
                 throw new ActionFailureException("unkown sync action type");
         }
+
+        if (mLocalBatch.isFull()) {
+            applyLocalBatch();
+        }
+    }
+
+    /**
+     * Write the queued local changes in one transaction, then map the notes
+     * added locally to their nodes and update the metas of the notes written.
+     * The remote actions queued so far are committed first, as the local
+     * changes record them as synced, e.g. by clearing the local modified flag.
+     */
+    private void applyLocalBatch() throws NetworkFailureException {
+        if (mLocalBatch.isEmpty()) {
+            return;
+        }
+        GTaskClient.getInstance().commitUpdate();
+        mLocalBatch.apply(mContentResolver);
+        HashMap<Long, SqlNote> notes = new HashMap<Long, SqlNote>();
+        for (Map.Entry<Node, SqlNote> entry : mLocalWrites.entrySet()) {
+            Node node = entry.getKey();
+            SqlNote sqlNote = entry.getValue();
+            mGidToNid.put(node.getGid(), sqlNote.getId());
+            mNidToGid.put(sqlNote.getId(), node.getGid());
+            if (sqlNote.isNoteType()) {
+                notes.put(sqlNote.getId(), sqlNote);
+            }
+        }
+
+        // read the notes again as written, with the ids of the new rows
+        reloadNotes(notes);
+        for (Map.Entry<Node, SqlNote> entry : mLocalWrites.entrySet()) {
+            if (entry.getValue().isNoteType()) {
+                updateRemoteMeta(entry.getKey().getGid(), entry.getValue());
+            }
+        }
+        mLocalWrites.clear();
+    }
+
+    private void reloadNotes(HashMap<Long, SqlNote> notes) {
+        if (notes.isEmpty()) {
+            return;
+        }
+
+        SqlDataSet dataSet = SqlDataSet.query(mContext, notes.keySet());
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    "(_id IN (" + TextUtils.join(",", notes.keySet()) + "))", null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    SqlNote sqlNote = notes.get(c.getLong(SqlNote.ID_COLUMN));
+                    if (sqlNote != null) {
+                        sqlNote.reload(c, dataSet);
+                    }
+                }
+            } else {
+                Log.w(TAG, "failed to query written notes");
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private SqlNote getSqlNote(Cursor c) {
+        return mDataSet != null ? new SqlNote(mContext, c, mDataSet) : new SqlNote(mContext, c);
     }
 
     private void addLocalNode(Node node) throws NetworkFailureException {
@@ -548,7 +861,8 @@ public class GTaskManager {
                     JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
                     if (note.has(NoteColumns.ID)) {
                         long id = note.getLong(NoteColumns.ID);
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        if (DataUtils.existInNoteDatabase(mContentResolver, id)
+                                || mLocalBatch.isNoteIdClaimed(id)) {
                             // the id is not available, have to create a new one
                             note.remove(NoteColumns.ID);
                         }
@@ -561,7 +875,8 @@ public class GTaskManager {
                         JSONObject data = dataArray.getJSONObject(i);
                         if (data.has(DataColumns.ID)) {
                             long dataId = data.getLong(DataColumns.ID);
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)
+                                    || mLocalBatch.isDataIdClaimed(dataId)) {
                                 // the data id is not available, have to create
                                 // a new one
                                 data.remove(DataColumns.ID);
@@ -584,16 +899,11 @@ public class GTaskManager {
             sqlNote.setParentId(parentId.longValue());
         }
 
-        // create the local node
+        // create the local node, the gid-nid mapping and the meta are
+        // updated once it's written
         sqlNote.setGtaskId(node.getGid());
-        sqlNote.commit(false);
-
-        // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
-
-        // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        sqlNote.commit(false, mLocalBatch);
+        mLocalWrites.put(node, sqlNote);
     }
 
     private void updateLocalNode(Node node, Cursor c) throws NetworkFailureException {
@@ -603,7 +913,7 @@ public class GTaskManager {
 
         SqlNote sqlNote;
         // update the note locally
-        sqlNote = new SqlNote(mContext, c);
+        sqlNote = getSqlNote(c);
         sqlNote.setContent(node.getLocalJSONFromContent());
 
         Long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid())
@@ -613,10 +923,10 @@ public class GTaskManager {
             throw new ActionFailureException("cannot update local node");
         }
         sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
+        sqlNote.commit(true, mLocalBatch);
 
-        // update meta info
-        updateRemoteMeta(node.getGid(), sqlNote);
+        // update meta info once it's written
+        mLocalWrites.put(node, sqlNote);
     }
 
     private void addRemoteNode(Node node, Cursor c) throws NetworkFailureException {
@@ -624,7 +934,7 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
+        SqlNote sqlNote = getSqlNote(c);
         Node n;
 
         // update remotely
@@ -640,10 +950,11 @@ public class GTaskManager {
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
             GTaskClient.getInstance().createTask(task);
+            touch(task);
             n = (Node) task;
 
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            // add meta, once the task has its gid
+            mPendingMetas.put(task, sqlNote);
         } else {
             TaskList tasklist = null;
 
@@ -677,15 +988,21 @@ public class GTaskManager {
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
                 GTaskClient.getInstance().createTaskList(tasklist);
                 mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                touch(tasklist);
             }
             n = (Node) tasklist;
         }
 
-        // update local note
-        sqlNote.setGtaskId(n.getGid());
-        sqlNote.commit(false);
+        // update local note, a temporary gid is not written as the node may
+        // not be created if the sync stops
+        if (GTaskClient.isTempGid(n.getGid())) {
+            mCreatedNodes.put(sqlNote.getId(), n);
+        } else {
+            sqlNote.setGtaskId(n.getGid());
+        }
+        sqlNote.commit(false, mLocalBatch);
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        sqlNote.commit(true, mLocalBatch);
 
         // gid-id mapping
         mGidToNid.put(n.getGid(), sqlNote.getId());
@@ -697,7 +1014,7 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
+        SqlNote sqlNote = getSqlNote(c);
 
         // update remotely
         node.setContentByLocalJSON(sqlNote.getContent());
@@ -722,23 +1039,71 @@ public class GTaskManager {
                 preParentList.removeChildTask(task);
                 curParentList.addChildTask(task);
                 GTaskClient.getInstance().moveTask(task, preParentList, curParentList);
+                touch(preParentList);
             }
         }
+        touch(node);
 
         // clear local modified flag
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        sqlNote.commit(true, mLocalBatch);
+    }
+
+    private void touch(Node node) {
+        mTouchedNodes.add(node);
+        if (node instanceof Task && ((Task) node).getParent() != null) {
+            mTouchedNodes.add(((Task) node).getParent());
+        }
+    }
+
+    private void addPendingMetas() throws NetworkFailureException {
+        if (mPendingMetas.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Task, SqlNote> entry : mPendingMetas.entrySet()) {
+            updateRemoteMeta(entry.getKey().getGid(), entry.getValue());
+        }
+        mPendingMetas.clear();
+        GTaskClient.getInstance().commitUpdate();
+    }
+
+    /**
+     * Write the gids of the nodes created by the committed batches to their
+     * notes, and key the task lists by them
+     */
+    private void saveCreatedGids() {
+        HashMap<Long, String> gids = new HashMap<Long, String>();
+        Iterator<Map.Entry<Long, Node>> iter = mCreatedNodes.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Node> entry = iter.next();
+            String gid = entry.getValue().getGid();
+            if (!GTaskClient.isTempGid(gid)) {
+                gids.put(entry.getKey(), gid);
+                iter.remove();
+            }
+        }
+        if (!DataUtils.batchSetGtaskIds(mContentResolver, gids)) {
+            throw new ActionFailureException("failed to batch-update gtask ids");
+        }
+
+        HashMap<String, TaskList> lists = new HashMap<String, TaskList>();
+        for (TaskList list : mGTaskListHashMap.values()) {
+            lists.put(list.getGid(), list);
+        }
+        mGTaskListHashMap = lists;
     }
 
     private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
         if (sqlNote != null && sqlNote.isNoteType()) {
             MetaData metaData = mMetaHashMap.get(gid);
             if (metaData != null) {
-                metaData.setMeta(gid, sqlNote.getContent());
-                GTaskClient.getInstance().addUpdateNode(metaData);
+                // skip the update when the meta is unchanged
+                if (metaData.setMeta(gid, sqlNote.getMetaContent())) {
+                    GTaskClient.getInstance().addUpdateNode(metaData);
+                }
             } else {
                 metaData = new MetaData();
-                metaData.setMeta(gid, sqlNote.getContent());
+                metaData.setMeta(gid, sqlNote.getMetaContent());
                 mMetaList.addChildTask(metaData);
                 mMetaHashMap.put(gid, metaData);
                 GTaskClient.getInstance().createTask(metaData);
@@ -751,12 +1116,24 @@ public class GTaskManager {
             return;
         }
 
-        // get the latest gtask list
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        initGTaskList();
+        // the sync id of a node is its last modified time, the nodes not
+        // written by this sync still have the one they were downloaded with
+        HashMap<String, Long> lastModified = new HashMap<String, Long>();
+        for (TaskList list : mGTaskListHashMap.values()) {
+            lastModified.put(list.getGid(), list.getLastModified());
+            for (Task task : list.getChildTaskList()) {
+                lastModified.put(task.getGid(), task.getLastModified());
+            }
+        }
+        HashSet<String> touchedGids = new HashSet<String>();
+        for (Node node : mTouchedNodes) {
+            touchedGids.add(node.getGid());
+        }
+        if (!touchedGids.isEmpty() && !readTouchedLastModified(lastModified, touchedGids)) {
+            return;
+        }
 
+        HashMap<Long, Long> syncIds = new HashMap<Long, Long>();
         Cursor c = null;
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
@@ -765,14 +1142,14 @@ public class GTaskManager {
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
                 while (c.moveToNext()) {
-                    String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    Node node = mGTaskHashMap.get(gid);
-                    if (node != null) {
-                        mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                    Long syncId = lastModified.get(c.getString(SqlNote.GTASK_ID_COLUMN));
+                    if (syncId != null) {
+                        if (syncId.longValue() != c.getLong(SqlNote.SYNC_ID_COLUMN)) {
+                            syncIds.put(c.getLong(SqlNote.ID_COLUMN), syncId);
+                        }
+                    } else if (isInSkippedList(c)) {
+                        // the sync id is still the one of the last sync
+                        continue;
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
@@ -788,6 +1165,65 @@ public class GTaskManager {
                 c = null;
             }
         }
+        Log.d(TAG, "refresh " + syncIds.size() + " sync ids");
+        if (!DataUtils.batchSetSyncIds(mContentResolver, syncIds)) {
+            throw new ActionFailureException("failed to batch-update sync ids");
+        }
+
+        // the lists are now as the local notes, later syncs start from them
+        mWatermarks.save(getSyncAccount(), mGTaskListHashMap.values(), mFullSync,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Read the last modified time of the nodes written by this sync, the
+     * responses of the writes don't have it. Only the lists holding a
+     * written task are downloaded again, and only the written nodes take
+     * the new times, so a change made meanwhile by another client to the
+     * other nodes is still found by the next sync. For the same reason the
+     * written lists keep the time they were downloaded with as watermark,
+     * so the next sync downloads them again. Returns false if the sync is
+     * cancelled meanwhile.
+     */
+    private boolean readTouchedLastModified(HashMap<String, Long> lastModified,
+            HashSet<String> touchedGids) throws NetworkFailureException {
+        GTaskClient client = GTaskClient.getInstance();
+        // a node read without last_modified keeps 0, it's left out like before
+        for (TaskList remote : client.getTaskLists()) {
+            TaskList list = mGTaskListHashMap.get(remote.getGid());
+            if (list != null && touchedGids.contains(remote.getGid())
+                    && remote.getLastModified() != 0) {
+                lastModified.put(remote.getGid(), remote.getLastModified());
+            }
+        }
+
+        ArrayList<String> gids = new ArrayList<String>();
+        for (TaskList list : mGTaskListHashMap.values()) {
+            if (hasTouchedTask(list, touchedGids)) {
+                gids.add(list.getGid());
+            }
+        }
+        List<ArrayList<Task>> results = client.getTaskLists(gids, null, mCancelSignal);
+        if (results == null) {
+            return false;
+        }
+        for (ArrayList<Task> tasks : results) {
+            for (Task task : tasks) {
+                if (touchedGids.contains(task.getGid()) && task.getLastModified() != 0) {
+                    lastModified.put(task.getGid(), task.getLastModified());
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean hasTouchedTask(TaskList list, HashSet<String> touchedGids) {
+        for (Task task : list.getChildTaskList()) {
+            if (!task.getDeleted() && touchedGids.contains(task.getGid())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String getSyncAccount() {
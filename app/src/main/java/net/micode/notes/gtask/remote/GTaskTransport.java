@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/**
+ * Sends the requests of GTaskClient. {@link PooledHttpTransport} is the one
+ * used by default, another one can be set with GTaskClient.setTransport, e.g.
+ * to talk to a local stand-in server.
+ */
+public interface GTaskTransport {
+    /**
+     * Send the request. Several requests may be sent at once from different
+     * threads, the body of the response is read by the caller.
+     */
+    HttpResponse execute(HttpUriRequest request) throws IOException;
+
+    /**
+     * Cookies of the session, the auth cookie is set at login
+     */
+    CookieStore getCookieStore();
+
+    /**
+     * Milliseconds to wait before retrying a read which failed on the network
+     * for the given time, from 0, or -1 to give up
+     */
+    long getRetryDelay(int attempt);
+
+    /**
+     * Close the connections, the transport is not used after
+     */
+    void shutdown();
+}
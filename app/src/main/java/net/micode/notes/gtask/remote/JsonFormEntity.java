@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonWriter;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Form body holding one JSON value as a parameter, the way the GTask server
+ * takes its requests. The JSON is serialized and URL-encoded as it is sent,
+ * so neither the JSON text nor the encoded form is built in memory, and may
+ * be gzipped on the way.
+ */
+class JsonFormEntity extends AbstractHttpEntity {
+    private static final String CONTENT_TYPE = "application/x-www-form-urlencoded;charset=utf-8";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String mName;
+
+    private final JSONObject mJson;
+
+    private final boolean mGzip;
+
+    public JsonFormEntity(String name, JSONObject json, boolean gzip) {
+        mName = name;
+        mJson = json;
+        mGzip = gzip;
+        setContentType(CONTENT_TYPE);
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+        // the length isn't known before it's written
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        // only for the callers which need a copy, the request itself is
+        // written by writeTo
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        GZIPOutputStream gzip = mGzip ? new GZIPOutputStream(outstream, BUFFER_SIZE) : null;
+        FormWriter form = new FormWriter(gzip != null ? gzip : outstream);
+        form.writeRaw(mName);
+        form.writeRaw("=");
+        JsonWriter writer = new JsonWriter(form);
+        try {
+            writeValue(writer, mJson);
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+        writer.flush();
+        form.flush();
+        if (gzip != null) {
+            // the stream itself is closed by the caller
+            gzip.finish();
+        }
+    }
+
+    private static void writeValue(JsonWriter writer, Object value)
+            throws IOException, JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.nullValue();
+        } else if (value instanceof JSONObject) {
+            JSONObject js = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> keys = js.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writer.name(key);
+                writeValue(writer, js.get(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(writer, array.get(i));
+            }
+            writer.endArray();
+        } else if (value instanceof Boolean) {
+            writer.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    /**
+     * URL-encodes the chars written to it as UTF-8, like URLEncoder, into a
+     * buffer flushed to the stream
+     */
+    private static class FormWriter extends Writer {
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+        private final OutputStream mOut;
+
+        private final byte[] mBuffer;
+
+        private int mCount;
+
+        // High surrogate waiting for the low one of its pair
+        private char mHighSurrogate;
+
+        FormWriter(OutputStream out) {
+            mOut = out;
+            mBuffer = new byte[BUFFER_SIZE];
+        }
+
+        // Write ASCII chars which need no encoding
+        void writeRaw(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(int ch) throws IOException {
+            char c = (char) ch;
+            if (mHighSurrogate != 0) {
+                char high = mHighSurrogate;
+                mHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    putEncoded(0xf0 | (codePoint >> 18));
+                    putEncoded(0x80 | ((codePoint >> 12) & 0x3f));
+                    putEncoded(0x80 | ((codePoint >> 6) & 0x3f));
+                    putEncoded(0x80 | (codePoint & 0x3f));
+                    return;
+                }
+                // a lone surrogate, as URLEncoder writes it
+                putEncoded('?');
+            }
+
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                put(c);
+            } else if (c == ' ') {
+                put('+');
+            } else if (c < 0x80) {
+                putEncoded(c);
+            } else if (c < 0x800) {
+                putEncoded(0xc0 | (c >> 6));
+                putEncoded(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                mHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                putEncoded('?');
+            } else {
+                putEncoded(0xe0 | (c >> 12));
+                putEncoded(0x80 | ((c >> 6) & 0x3f));
+                putEncoded(0x80 | (c & 0x3f));
+            }
+        }
+
+        private void putEncoded(int b) throws IOException {
+            put('%');
+            put(HEX[(b >> 4) & 0xf]);
+            put(HEX[b & 0xf]);
+        }
+
+        private void put(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                mOut.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mCount > 0) {
+                mOut.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
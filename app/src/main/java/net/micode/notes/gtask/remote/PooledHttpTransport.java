@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport keeping a pool of keep-alive connections. Every connect, read of
+ * the socket and wait for a pooled connection times out, so a stalled server
+ * fails the request instead of hanging the sync. Responses are asked gzipped.
+ * Failed reads are retried after an exponential backoff with full jitter.
+ */
+public class PooledHttpTransport implements GTaskTransport {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+    // An idle connection is closed after this, or sooner if the server says so
+    private static final long KEEP_ALIVE = 30000;
+
+    private static final int MAX_RETRIES = 3;
+
+    private static final long RETRY_BASE_DELAY = 500;
+
+    private static final long RETRY_MAX_DELAY = 8000;
+
+    private final PoolingClientConnectionManager mConnectionManager;
+
+    private final DefaultHttpClient mHttpClient;
+
+    private final Random mRandom;
+
+    public PooledHttpTransport(int maxConnections) {
+        this(maxConnections, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public PooledHttpTransport(int maxConnections, int connectTimeout, int readTimeout) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Wrong max connections " + maxConnections);
+        }
+        HttpParams httpParameters = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParameters, connectTimeout);
+        HttpConnectionParams.setSoTimeout(httpParameters, readTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(httpParameters, true);
+        httpParameters.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectTimeout);
+        HttpProtocolParams.setUseExpectContinue(httpParameters, false);
+
+        mConnectionManager = new PoolingClientConnectionManager();
+        mConnectionManager.setDefaultMaxPerRoute(maxConnections);
+        mConnectionManager.setMaxTotal(maxConnections);
+        mHttpClient = new DefaultHttpClient(mConnectionManager, httpParameters);
+        mHttpClient.setCookieStore(new BasicCookieStore());
+        mHttpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, KEEP_ALIVE) : KEEP_ALIVE;
+            }
+        });
+        // retried by the caller, only the reads and after a backoff
+        mHttpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        mRandom = new Random();
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        // don't pick a connection the server has likely dropped already
+        mConnectionManager.closeExpiredConnections();
+        mConnectionManager.closeIdleConnections(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        if (!request.containsHeader("Accept-Encoding")) {
+            request.setHeader("Accept-Encoding", "gzip");
+        }
+        return mHttpClient.execute(request);
+    }
+
+    public CookieStore getCookieStore() {
+        return mHttpClient.getCookieStore();
+    }
+
+    public long getRetryDelay(int attempt) {
+        if (attempt >= MAX_RETRIES) {
+            return -1;
+        }
+        long cap = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << attempt);
+        return (long) (mRandom.nextDouble() * cap);
+    }
+
+    public void shutdown() {
+        mConnectionManager.shutdown();
+    }
+}
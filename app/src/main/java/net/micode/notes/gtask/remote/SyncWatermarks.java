@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import net.micode.notes.gtask.data.TaskList;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last modified time of each remote task list as of the end of the last
+ * sync, to tell which lists changed since. Kept for one account, along with
+ * the time of the last full sync.
+ */
+public class SyncWatermarks {
+    private static final String PREFERENCE_NAME = "gtask_sync_watermarks";
+
+    private static final String PREFERENCE_ACCOUNT = "account";
+
+    private static final String PREFERENCE_LAST_FULL_SYNC = "last_full_sync";
+
+    private static final String PREFERENCE_LIST_PREFIX = "list_";
+
+    // A full sync is done at least this often, in case a remote change
+    // didn't move the watermark of its list
+    public static final long FULL_SYNC_INTERVAL = 24L * 60 * 60 * 1000;
+
+    private SharedPreferences mPreferences;
+
+    private HashMap<String, Long> mWatermarks;
+
+    private long mLastFullSync;
+
+    public SyncWatermarks(Context context, String account) {
+        mPreferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        mWatermarks = new HashMap<String, Long>();
+        if (!account.equals(mPreferences.getString(PREFERENCE_ACCOUNT, ""))) {
+            return;
+        }
+        mLastFullSync = mPreferences.getLong(PREFERENCE_LAST_FULL_SYNC, 0);
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(PREFERENCE_LIST_PREFIX)
+                    && entry.getValue() instanceof Long) {
+                mWatermarks.put(entry.getKey().substring(PREFERENCE_LIST_PREFIX.length()),
+                        (Long) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Whether the next sync should download every list
+     */
+    public boolean isFullSyncDue(long now) {
+        return mWatermarks.isEmpty() || now < mLastFullSync
+                || now - mLastFullSync > FULL_SYNC_INTERVAL;
+    }
+
+    /**
+     * Whether the list is unchanged since the last sync
+     */
+    public boolean isUnchanged(TaskList list) {
+        Long watermark = mWatermarks.get(list.getGid());
+        return watermark != null && watermark == list.getLastModified();
+    }
+
+    /**
+     * Replace the watermarks with the ones of the lists at the end of a
+     * successful sync
+     */
+    public void save(String account, Collection<TaskList> lists, boolean fullSync, long now) {
+        mWatermarks.clear();
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.clear();
+        editor.putString(PREFERENCE_ACCOUNT, account);
+        if (fullSync) {
+            mLastFullSync = now;
+        }
+        editor.putLong(PREFERENCE_LAST_FULL_SYNC, mLastFullSync);
+        for (TaskList list : lists) {
+            mWatermarks.put(list.getGid(), list.getLastModified());
+            editor.putLong(PREFERENCE_LIST_PREFIX + list.getGid(), list.getLastModified());
+        }
+        editor.commit();
+    }
+
+    /**
+     * Forget the watermarks, so the next sync is a full one
+     */
+    public static void clear(Context context) {
+        context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE).edit().clear()
+                .commit();
+    }
+}
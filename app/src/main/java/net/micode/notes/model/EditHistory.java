@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Undo and redo log of the note text. Only the replaced and inserted chars of
+ * every edit are kept, so the memory used depends on the size of the edits
+ * rather than the size of the note. Typing and deleting in one place within a
+ * short time are merged into a single edit, and the oldest edits are dropped
+ * when the log grows over {@link #MAX_HISTORY_CHARS}.
+ */
+public class EditHistory {
+    private static final int MAX_HISTORY_CHARS = 64 * 1024;
+
+    private static final int MAX_HISTORY_EDITS = 500;
+
+    private static final long COALESCE_INTERVAL = 1500;
+
+    private static final String KEY_STARTS = "edit_history_starts";
+
+    private static final String KEY_REMOVED = "edit_history_removed";
+
+    private static final String KEY_INSERTED = "edit_history_inserted";
+
+    private static final String KEY_UNDO_COUNT = "edit_history_undo_count";
+
+    public static class Edit {
+        private int mStart;
+        private StringBuilder mRemoved;
+        private StringBuilder mInserted;
+        private long mTime;
+
+        private Edit(int start, CharSequence removed, CharSequence inserted, long time) {
+            mStart = start;
+            mRemoved = new StringBuilder(removed);
+            mInserted = new StringBuilder(inserted);
+            mTime = time;
+        }
+
+        public int getStart() {
+            return mStart;
+        }
+
+        public CharSequence getRemoved() {
+            return mRemoved;
+        }
+
+        public CharSequence getInserted() {
+            return mInserted;
+        }
+
+        private int size() {
+            return mRemoved.length() + mInserted.length();
+        }
+    }
+
+    private LinkedList<Edit> mUndoList;
+
+    private LinkedList<Edit> mRedoList;
+
+    private int mSize;
+
+    public EditHistory() {
+        mUndoList = new LinkedList<Edit>();
+        mRedoList = new LinkedList<Edit>();
+        mSize = 0;
+    }
+
+    public boolean canUndo() {
+        return !mUndoList.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !mRedoList.isEmpty();
+    }
+
+    public void clear() {
+        mUndoList.clear();
+        mRedoList.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Record that the chars {@code removed} at {@code start} were replaced by
+     * {@code inserted}
+     */
+    public void record(int start, CharSequence removed, CharSequence inserted) {
+        // The IME replaces the whole composing word on every key, keep only
+        // the chars which really changed so the typing can be merged
+        int prefix = 0;
+        int maxPrefix = Math.min(removed.length(), inserted.length());
+        while (prefix < maxPrefix && removed.charAt(prefix) == inserted.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix && removed.charAt(removed.length() - 1 - suffix)
+                == inserted.charAt(inserted.length() - 1 - suffix)) {
+            suffix++;
+        }
+        start += prefix;
+        removed = removed.subSequence(prefix, removed.length() - suffix);
+        inserted = inserted.subSequence(prefix, inserted.length() - suffix);
+
+        if (removed.length() == 0 && inserted.length() == 0) {
+            return;
+        }
+        for (Edit edit : mRedoList) {
+            mSize -= edit.size();
+        }
+        mRedoList.clear();
+
+        long now = System.currentTimeMillis();
+        Edit last = mUndoList.isEmpty() ? null : mUndoList.getLast();
+        if (last != null && now - last.mTime < COALESCE_INTERVAL
+                && coalesce(last, start, removed, inserted)) {
+            last.mTime = now;
+            mSize += removed.length() + inserted.length();
+        } else {
+            mUndoList.addLast(new Edit(start, removed, inserted, now));
+            mSize += removed.length() + inserted.length();
+        }
+        trim();
+    }
+
+    private static boolean coalesce(Edit last, int start, CharSequence removed,
+            CharSequence inserted) {
+        if (removed.length() == 0) {
+            // Typing after the last insertion, a new line starts a new edit
+            if (start != last.mStart + last.mInserted.length()
+                    || TextUtils.indexOf(inserted, '\n') >= 0) {
+                return false;
+            }
+            last.mInserted.append(inserted);
+            return true;
+        }
+        if (inserted.length() == 0 && last.mInserted.length() == 0) {
+            if (start + removed.length() == last.mStart) {
+                // Backspace
+                last.mRemoved.insert(0, removed);
+                last.mStart = start;
+                return true;
+            } else if (start == last.mStart) {
+                // Forward delete
+                last.mRemoved.append(removed);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void trim() {
+        while (mUndoList.size() > 1
+                && (mSize > MAX_HISTORY_CHARS || mUndoList.size() > MAX_HISTORY_EDITS)) {
+            mSize -= mUndoList.removeFirst().size();
+        }
+    }
+
+    /**
+     * Take the last edit for undo, the caller should replace
+     * {@link Edit#getInserted()} at {@link Edit#getStart()} with
+     * {@link Edit#getRemoved()}
+     */
+    public Edit undo() {
+        if (mUndoList.isEmpty()) {
+            return null;
+        }
+        Edit edit = mUndoList.removeLast();
+        // An undone edit never merges with the next typing
+        edit.mTime = 0;
+        mRedoList.addLast(edit);
+        return edit;
+    }
+
+    /**
+     * Take the last undone edit, the caller should replace
+     * {@link Edit#getRemoved()} at {@link Edit#getStart()} with
+     * {@link Edit#getInserted()}
+     */
+    public Edit redo() {
+        if (mRedoList.isEmpty()) {
+            return null;
+        }
+        Edit edit = mRedoList.removeLast();
+        mUndoList.addLast(edit);
+        return edit;
+    }
+
+    public void saveState(Bundle outState) {
+        int count = mUndoList.size() + mRedoList.size();
+        int[] starts = new int[count];
+        String[] removed = new String[count];
+        String[] inserted = new String[count];
+        int i = 0;
+        for (Edit edit : mUndoList) {
+            starts[i] = edit.mStart;
+            removed[i] = edit.mRemoved.toString();
+            inserted[i] = edit.mInserted.toString();
+            i++;
+        }
+        // Redo edits are stored from the most recently undone one
+        Iterator<Edit> iter = mRedoList.descendingIterator();
+        while (iter.hasNext()) {
+            Edit edit = iter.next();
+            starts[i] = edit.mStart;
+            removed[i] = edit.mRemoved.toString();
+            inserted[i] = edit.mInserted.toString();
+            i++;
+        }
+        outState.putIntArray(KEY_STARTS, starts);
+        outState.putStringArray(KEY_REMOVED, removed);
+        outState.putStringArray(KEY_INSERTED, inserted);
+        outState.putInt(KEY_UNDO_COUNT, mUndoList.size());
+    }
+
+    public void restoreState(Bundle savedState) {
+        clear();
+        int[] starts = savedState.getIntArray(KEY_STARTS);
+        String[] removed = savedState.getStringArray(KEY_REMOVED);
+        String[] inserted = savedState.getStringArray(KEY_INSERTED);
+        if (starts == null || removed == null || inserted == null) {
+            return;
+        }
+        int undoCount = savedState.getInt(KEY_UNDO_COUNT, starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            Edit edit = new Edit(starts[i], removed[i], inserted[i], 0);
+            if (i < undoCount) {
+                mUndoList.addLast(edit);
+            } else {
+                mRedoList.addFirst(edit);
+            }
+            mSize += edit.size();
+        }
+    }
+}
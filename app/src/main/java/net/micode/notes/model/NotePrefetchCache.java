@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Content of the notes the user is likely to open next, read ahead from the
+ * notes list so {@link WorkingNote#load} finds them without a query. All of
+ * it is dropped when a note or a data row changes.
+ */
+public class NotePrefetchCache {
+    private static final String TAG = "NotePrefetchCache";
+
+    // Bound of the cache, in chars of note text
+    private static final int MAX_SIZE = 256 * 1024;
+
+    // Notes read by one prefetch at most
+    public static final int MAX_PREFETCH = 20;
+
+    private static final String[] NOTE_PROJECTION = new String[] {
+        NoteColumns.ID,
+        NoteColumns.TYPE,
+        NoteColumns.PARENT_ID,
+        NoteColumns.ALERTED_DATE,
+        NoteColumns.BG_COLOR_ID,
+        NoteColumns.WIDGET_ID,
+        NoteColumns.WIDGET_TYPE,
+        NoteColumns.MODIFIED_DATE
+    };
+
+    private static final int NOTE_ID_COLUMN            = 0;
+    private static final int NOTE_TYPE_COLUMN          = 1;
+    private static final int NOTE_PARENT_ID_COLUMN     = 2;
+    private static final int NOTE_ALERTED_DATE_COLUMN  = 3;
+    private static final int NOTE_BG_COLOR_ID_COLUMN   = 4;
+    private static final int NOTE_WIDGET_ID_COLUMN     = 5;
+    private static final int NOTE_WIDGET_TYPE_COLUMN   = 6;
+    private static final int NOTE_MODIFIED_DATE_COLUMN = 7;
+
+    private static final String[] DATA_PROJECTION = new String[] {
+        DataColumns.ID,
+        DataColumns.NOTE_ID,
+        DataColumns.CONTENT,
+        DataColumns.MIME_TYPE,
+        DataColumns.DATA1
+    };
+
+    private static final int DATA_ID_COLUMN        = 0;
+    private static final int DATA_NOTE_ID_COLUMN   = 1;
+    private static final int DATA_CONTENT_COLUMN   = 2;
+    private static final int DATA_MIME_TYPE_COLUMN = 3;
+    private static final int DATA_MODE_COLUMN      = 4;
+
+    private static NotePrefetchCache sInstance;
+
+    /**
+     * The note row and data rows of a note, as {@link WorkingNote} loads them
+     */
+    static class Entry {
+        long folderId;
+        int type;
+        int bgColorId;
+        int widgetId;
+        int widgetType;
+        long alertDate;
+        long modifiedDate;
+        String content;
+        int mode;
+        long textDataId;
+        long callDataId;
+
+        private Entry(Cursor cursor) {
+            type = cursor.getInt(NOTE_TYPE_COLUMN);
+            folderId = cursor.getLong(NOTE_PARENT_ID_COLUMN);
+            alertDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN);
+            bgColorId = cursor.getInt(NOTE_BG_COLOR_ID_COLUMN);
+            widgetId = cursor.getInt(NOTE_WIDGET_ID_COLUMN);
+            widgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN);
+            modifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN);
+        }
+
+        private void addData(Cursor cursor) {
+            String mimeType = cursor.getString(DATA_MIME_TYPE_COLUMN);
+            if (DataConstants.NOTE.equals(mimeType)) {
+                content = cursor.getString(DATA_CONTENT_COLUMN);
+                mode = cursor.getInt(DATA_MODE_COLUMN);
+                textDataId = cursor.getLong(DATA_ID_COLUMN);
+            } else if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                callDataId = cursor.getLong(DATA_ID_COLUMN);
+            } else {
+                Log.d(TAG, "Wrong note type with type:" + mimeType);
+            }
+        }
+    }
+
+    private LruCache<Long, Entry> mEntries;
+
+    // Increased on every change, a prefetch started before it is not kept
+    private int mGeneration;
+
+    public static synchronized NotePrefetchCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NotePrefetchCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NotePrefetchCache(Context context) {
+        mEntries = new LruCache<Long, Entry>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(Long id, Entry entry) {
+                return 1 + (entry.content != null ? entry.content.length() : 0);
+            }
+        };
+        ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        ContentResolver resolver = context.getContentResolver();
+        resolver.registerContentObserver(Notes.CONTENT_NOTE_URI, true, observer);
+        resolver.registerContentObserver(Notes.CONTENT_DATA_URI, true, observer);
+    }
+
+    private synchronized void invalidate() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    /**
+     * The cached note, null if it's not cached
+     */
+    synchronized Entry get(long noteId) {
+        return mEntries.get(noteId);
+    }
+
+    /**
+     * Whether the note is cached and is a note out of the trash, null if it's
+     * not cached
+     */
+    public synchronized Boolean isVisibleNote(long noteId) {
+        Entry entry = mEntries.get(noteId);
+        if (entry == null) {
+            return null;
+        }
+        return entry.type == Notes.TYPE_NOTE && entry.folderId != Notes.ID_TRASH_FOLER;
+    }
+
+    /**
+     * Read the notes which are not cached yet in the background, at most
+     * {@link #MAX_PREFETCH} of them, the first ones first
+     */
+    public void prefetch(final ContentResolver resolver, long[] noteIds) {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final int generation;
+        synchronized (this) {
+            for (int i = 0; i < noteIds.length && ids.size() < MAX_PREFETCH; i++) {
+                if (mEntries.get(noteIds[i]) == null) {
+                    ids.add(noteIds[i]);
+                }
+            }
+            generation = mGeneration;
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            protected Void doInBackground(Void... unused) {
+                HashMap<Long, Entry> entries = read(resolver, ids);
+                if (entries == null) {
+                    return null;
+                }
+                synchronized (NotePrefetchCache.this) {
+                    if (generation == mGeneration) {
+                        for (Long id : ids) {
+                            Entry entry = entries.get(id);
+                            if (entry != null) {
+                                mEntries.put(id, entry);
+                            }
+                        }
+                    }
+                }
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * Query the notes and their data rows, two queries for all of them. Notes
+     * which don't exist are left out, null if a query failed.
+     */
+    static HashMap<Long, Entry> read(ContentResolver resolver, ArrayList<Long> noteIds) {
+        StringBuilder in = new StringBuilder(" IN (");
+        String[] args = new String[noteIds.size()];
+        for (int i = 0; i < args.length; i++) {
+            in.append(i == 0 ? "?" : ",?");
+            args[i] = String.valueOf(noteIds.get(i));
+        }
+        in.append(")");
+
+        HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, NOTE_PROJECTION,
+                NoteColumns.ID + in, args, null);
+        if (cursor == null) {
+            Log.e(TAG, "Query notes failed");
+            return null;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                entries.put(cursor.getLong(NOTE_ID_COLUMN), new Entry(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = resolver.query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
+                DataColumns.NOTE_ID + in, args, null);
+        if (cursor == null) {
+            Log.e(TAG, "Query data of notes failed");
+            return null;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Entry entry = entries.get(cursor.getLong(DATA_NOTE_ID_COLUMN));
+                if (entry != null) {
+                    entry.addData(cursor);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+}
@@ -26,11 +26,14 @@ import android.util.Log;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
-import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
 import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 
 public class WorkingNote {
     // Note for the working note
@@ -62,44 +65,7 @@ public class WorkingNote {
 
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
-    public static final String[] DATA_PROJECTION = new String[] {
-            DataColumns.ID,
-            DataColumns.CONTENT,
-            DataColumns.MIME_TYPE,
-            DataColumns.DATA1,
-            DataColumns.DATA2,
-            DataColumns.DATA3,
-            DataColumns.DATA4,
-    };
-
-    public static final String[] NOTE_PROJECTION = new String[] {
-            NoteColumns.PARENT_ID,
-            NoteColumns.ALERTED_DATE,
-            NoteColumns.BG_COLOR_ID,
-            NoteColumns.WIDGET_ID,
-            NoteColumns.WIDGET_TYPE,
-            NoteColumns.MODIFIED_DATE
-    };
-
-    private static final int DATA_ID_COLUMN = 0;
-
-    private static final int DATA_CONTENT_COLUMN = 1;
-
-    private static final int DATA_MIME_TYPE_COLUMN = 2;
-
-    private static final int DATA_MODE_COLUMN = 3;
-
-    private static final int NOTE_PARENT_ID_COLUMN = 0;
-
-    private static final int NOTE_ALERTED_DATE_COLUMN = 1;
-
-    private static final int NOTE_BG_COLOR_ID_COLUMN = 2;
-
-    private static final int NOTE_WIDGET_ID_COLUMN = 3;
-
-    private static final int NOTE_WIDGET_TYPE_COLUMN = 4;
-
-    private static final int NOTE_MODIFIED_DATE_COLUMN = 5;
+    private EditHistory mEditHistory;
 
     // New note construct
     private WorkingNote(Context context, long folderId) {
@@ -125,52 +91,36 @@ public class WorkingNote {
     }
 
     private void loadNote() {
-        Cursor cursor = mContext.getContentResolver().query(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mNoteId), NOTE_PROJECTION, null,
-                null, null);
-
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                mFolderId = cursor.getLong(NOTE_PARENT_ID_COLUMN);
-                mBgColorId = cursor.getInt(NOTE_BG_COLOR_ID_COLUMN);
-                mWidgetId = cursor.getInt(NOTE_WIDGET_ID_COLUMN);
-                mWidgetType = cursor.getInt(NOTE_WIDGET_TYPE_COLUMN);
-                mAlertDate = cursor.getLong(NOTE_ALERTED_DATE_COLUMN);
-                mModifiedDate = cursor.getLong(NOTE_MODIFIED_DATE_COLUMN);
+        // Usually prefetched by the notes list
+        NotePrefetchCache.Entry entry = NotePrefetchCache.getInstance(mContext).get(mNoteId);
+        if (entry == null) {
+            ArrayList<Long> ids = new ArrayList<Long>();
+            ids.add(mNoteId);
+            HashMap<Long, NotePrefetchCache.Entry> entries = NotePrefetchCache.read(
+                    mContext.getContentResolver(), ids);
+            if (entries == null) {
+                Log.e(TAG, "No note with id:" + mNoteId);
+                throw new IllegalArgumentException("Unable to find note with id " + mNoteId);
             }
-            cursor.close();
-        } else {
-            Log.e(TAG, "No note with id:" + mNoteId);
-            throw new IllegalArgumentException("Unable to find note with id " + mNoteId);
-        }
-        loadNoteData();
-    }
-
-    private void loadNoteData() {
-        Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
-                DataColumns.NOTE_ID + "=?", new String[] {
-                    String.valueOf(mNoteId)
-                }, null);
-
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                do {
-                    String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
-                    if (DataConstants.NOTE.equals(type)) {
-                        mContent = cursor.getString(DATA_CONTENT_COLUMN);
-                        mMode = cursor.getInt(DATA_MODE_COLUMN);
-                        mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
-                    } else if (DataConstants.CALL_NOTE.equals(type)) {
-                        mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
-                    } else {
-                        Log.d(TAG, "Wrong note type with type:" + type);
-                    }
-                } while (cursor.moveToNext());
+            entry = entries.get(mNoteId);
+            if (entry == null) {
+                Log.e(TAG, "No note with id:" + mNoteId);
+                throw new IllegalArgumentException("Unable to find note with id " + mNoteId);
             }
-            cursor.close();
-        } else {
-            Log.e(TAG, "No data with id:" + mNoteId);
-            throw new IllegalArgumentException("Unable to find note's data with id " + mNoteId);
+        }
+        mFolderId = entry.folderId;
+        mBgColorId = entry.bgColorId;
+        mWidgetId = entry.widgetId;
+        mWidgetType = entry.widgetType;
+        mAlertDate = entry.alertDate;
+        mModifiedDate = entry.modifiedDate;
+        mContent = entry.content;
+        mMode = entry.mode;
+        if (entry.textDataId > 0) {
+            mNote.setTextDataId(entry.textDataId);
+        }
+        if (entry.callDataId > 0) {
+            mNote.setCallDataId(entry.callDataId);
         }
     }
 
@@ -212,6 +162,33 @@ public class WorkingNote {
         }
     }
 
+    /**
+     * Replace the text with the one of the given revision and save the note,
+     * which adds the restored text as the newest revision
+     */
+    public boolean restoreRevision(long revisionId) {
+        if (!existInDatabase()) {
+            return false;
+        }
+        String content = null;
+        Cursor cursor = mContext.getContentResolver().query(
+                ContentUris.withAppendedId(Notes.CONTENT_REVISION_URI, revisionId),
+                new String[] { RevisionColumns.NOTE_ID, RevisionColumns.CONTENT }, null, null,
+                null);
+        if (cursor != null) {
+            if (cursor.moveToFirst() && cursor.getLong(0) == mNoteId) {
+                content = cursor.getString(1);
+            }
+            cursor.close();
+        }
+        if (content == null) {
+            Log.e(TAG, "No revision " + revisionId + " for note " + mNoteId);
+            return false;
+        }
+        setWorkingText(content);
+        return saveNote();
+    }
+
     public boolean existInDatabase() {
         return mNoteId > 0;
     }
@@ -294,6 +271,17 @@ public class WorkingNote {
         mNote.setNoteValue(NoteColumns.PARENT_ID, String.valueOf(Notes.ID_CALL_RECORD_FOLDER));
     }
 
+    /**
+     * Undo history of the note text, kept with the note so it can be saved
+     * and restored together with it
+     */
+    public EditHistory getEditHistory() {
+        if (mEditHistory == null) {
+            mEditHistory = new EditHistory();
+        }
+        return mEditHistory;
+    }
+
     public boolean hasClockAlert() {
         return (mAlertDate > 0 ? true : false);
     }
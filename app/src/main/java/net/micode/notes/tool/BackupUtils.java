@@ -24,6 +24,8 @@ import android.text.format.DateFormat;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.FolderCache;
+import net.micode.notes.data.FolderCache.Folder;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
@@ -34,6 +36,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.List;
 
 
 public class BackupUtils {
@@ -230,31 +233,25 @@ public class BackupUtils {
                 return STATE_SYSTEM_ERROR;
             }
             // First export folder and its notes
-            Cursor folderCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
-                            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
-                            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER, null, null);
-
-            if (folderCursor != null) {
-                if (folderCursor.moveToFirst()) {
-                    do {
-                        // Print folder's name
-                        String folderName = "";
-                        if(folderCursor.getLong(NOTE_COLUMN_ID) == Notes.ID_CALL_RECORD_FOLDER) {
-                            folderName = mContext.getString(R.string.call_record_folder_name);
-                        } else {
-                            folderName = folderCursor.getString(NOTE_COLUMN_SNIPPET);
-                        }
-                        if (!TextUtils.isEmpty(folderName)) {
-                            ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
-                        }
-                        String folderId = folderCursor.getString(NOTE_COLUMN_ID);
-                        exportFolderToText(folderId, ps);
-                    } while (folderCursor.moveToNext());
+            List<Folder> folders = FolderCache.getInstance(mContext).getFolders();
+            if (folders != null) {
+                for (Folder folder : folders) {
+                    if (!(folder.type == Notes.TYPE_FOLDER && folder.parentId != Notes.ID_TRASH_FOLER)
+                            && folder.id != Notes.ID_CALL_RECORD_FOLDER) {
+                        continue;
+                    }
+                    // Print folder's name
+                    String folderName = "";
+                    if (folder.id == Notes.ID_CALL_RECORD_FOLDER) {
+                        folderName = mContext.getString(R.string.call_record_folder_name);
+                    } else {
+                        folderName = folder.name;
+                    }
+                    if (!TextUtils.isEmpty(folderName)) {
+                        ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
+                    }
+                    exportFolderToText(String.valueOf(folder.id), ps);
                 }
-                folderCursor.close();
             }
 
             // Export notes in root's folder
@@ -23,16 +23,21 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.FolderTreeColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 
 public class DataUtils {
@@ -111,6 +116,284 @@ public class DataUtils {
         return false;
     }
 
+    /**
+     * Move a folder with everything under it into another folder, the folder
+     * tree is updated by the database in a fixed number of statements
+     *
+     * @return false if the destination is the folder itself or one of its
+     * sub folders
+     */
+    public static boolean moveFolder(ContentResolver resolver, long folderId, long desFolderId) {
+        if (isInFolderSubtree(resolver, desFolderId, folderId)) {
+            Log.e(TAG, "Can't move folder " + folderId + " into its subtree");
+            return false;
+        }
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, desFolderId);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        try {
+            return resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, folderId),
+                    values, null, null) > 0;
+        } catch (SQLiteConstraintException e) {
+            // Raised by the folder tree if it was moved concurrently
+            Log.e(TAG, "Move folder failed: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Whether the folder is the given ancestor or one of its sub folders
+     */
+    public static boolean isInFolderSubtree(ContentResolver resolver, long folderId,
+            long ancestorId) {
+        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, new String[] { NoteColumns.ID },
+                NoteColumns.ID + "=? AND " + NoteColumns.ID + " IN (SELECT "
+                        + FolderTreeColumns.DESCENDANT + " FROM " + TABLE.FOLDER_TREE + " WHERE "
+                        + FolderTreeColumns.ANCESTOR + "=?)",
+                new String[] { String.valueOf(folderId), String.valueOf(ancestorId) }, null);
+        boolean exist = false;
+        if (cursor != null) {
+            exist = cursor.getCount() > 0;
+            cursor.close();
+        }
+        return exist;
+    }
+
+    /**
+     * Selection of all the notes in the folder except the given ids, so a
+     * whole folder is handled by one statement instead of one per note
+     */
+    private static String getFolderNotesSelection(HashSet<Long> excludedIds) {
+        StringBuilder selection = new StringBuilder();
+        selection.append(NoteColumns.PARENT_ID).append("=? AND ")
+                .append(NoteColumns.TYPE).append("=?");
+        if (excludedIds != null && excludedIds.size() > 0) {
+            selection.append(" AND ").append(NoteColumns.ID).append(" NOT IN (");
+            boolean first = true;
+            for (long id : excludedIds) {
+                if (!first) {
+                    selection.append(',');
+                }
+                selection.append(id);
+                first = false;
+            }
+            selection.append(')');
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Count the notes of the folder except the given ids, i.e. the notes
+     * {@link #batchDeleteFolderNotes} or {@link #batchMoveFolderNotes} would
+     * handle, including the ones the list has not loaded yet
+     */
+    public static int getFolderNotesCount(ContentResolver resolver, long folderId,
+            HashSet<Long> excludedIds) {
+        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI, new String[] { "COUNT(*)" },
+                getFolderNotesSelection(excludedIds),
+                new String[] { String.valueOf(folderId), String.valueOf(Notes.TYPE_NOTE) }, null);
+        int count = 0;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                count = cursor.getInt(0);
+            }
+            cursor.close();
+        } else {
+            Log.e(TAG, "Count notes of folder " + folderId + " failed");
+        }
+        return count;
+    }
+
+    public static boolean batchDeleteFolderNotes(ContentResolver resolver, long folderId,
+            HashSet<Long> excludedIds) {
+        int count = resolver.delete(Notes.CONTENT_NOTE_URI, getFolderNotesSelection(excludedIds),
+                new String[] { String.valueOf(folderId), String.valueOf(Notes.TYPE_NOTE) });
+        Log.d(TAG, "delete " + count + " notes in folder " + folderId);
+        return true;
+    }
+
+    public static boolean batchMoveFolderNotes(ContentResolver resolver, long srcFolderId,
+            HashSet<Long> excludedIds, long desFolderId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, desFolderId);
+        values.put(NoteColumns.LOCAL_MODIFIED, 1);
+        int count = resolver.update(Notes.CONTENT_NOTE_URI, values,
+                getFolderNotesSelection(excludedIds),
+                new String[] { String.valueOf(srcFolderId), String.valueOf(Notes.TYPE_NOTE) });
+        Log.d(TAG, "move " + count + " notes from folder " + srcFolderId + " to " + desFolderId);
+        return true;
+    }
+
+    /**
+     * Space between the ranks of neighbouring pinned notes. Moving a note
+     * between two others takes the middle of their ranks, so the gap allows
+     * many moves to the same place before the folder's ranks are spaced out
+     * again.
+     */
+    public static final long PIN_RANK_GAP = 1L << 20;
+
+    private static final String PINNED_NOTES_SELECTION = NoteColumns.PARENT_ID + "=? AND "
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND " + NoteColumns.PINNED + "=1";
+
+    /**
+     * Pin the notes above the pinned notes of the folder in the order of the
+     * list, the first one on top, or unpin them
+     */
+    public static boolean batchSetPinned(ContentResolver resolver, long folderId,
+            List<Long> ids, boolean pinned) {
+        if (ids == null || ids.size() == 0) {
+            Log.d(TAG, "no id to pin");
+            return true;
+        }
+
+        long rank = 0;
+        if (pinned) {
+            Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI,
+                    new String[] { "MIN(" + NoteColumns.PIN_RANK + ")" }, PINNED_NOTES_SELECTION,
+                    new String[] { String.valueOf(folderId) }, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    rank = cursor.getLong(0);
+                }
+                cursor.close();
+            }
+        }
+
+        if (pinned) {
+            rank -= ids.size() * PIN_RANK_GAP;
+        }
+
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (long id : ids) {
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
+            builder.withValue(NoteColumns.PINNED, pinned ? 1 : 0);
+            builder.withValue(NoteColumns.PIN_RANK, rank);
+            if (pinned) {
+                rank += PIN_RANK_GAP;
+            }
+            operationList.add(builder.build());
+        }
+        return applyBatch(resolver, operationList);
+    }
+
+    /**
+     * Move a pinned note right after another pinned note of the folder, or
+     * to the top if {@code afterId} is 0. Only the moved note is written,
+     * unless there is no rank left between its new neighbours, then the
+     * ranks of the pinned notes of the folder are spaced out again.
+     */
+    public static boolean movePinnedNote(ContentResolver resolver, long folderId, long noteId,
+            long afterId) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ArrayList<Long> ranks = new ArrayList<Long>();
+        Cursor cursor = resolver.query(Notes.CONTENT_NOTE_URI,
+                new String[] { NoteColumns.ID, NoteColumns.PIN_RANK }, PINNED_NOTES_SELECTION,
+                new String[] { String.valueOf(folderId) },
+                NoteColumns.PIN_RANK + "," + NoteColumns.ID);
+        if (cursor == null) {
+            Log.e(TAG, "Query pinned notes of folder " + folderId + " failed");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) != noteId) {
+                    ids.add(cursor.getLong(0));
+                    ranks.add(cursor.getLong(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int position = afterId == 0 ? 0 : ids.indexOf(afterId) + 1;
+        if (position == 0 && afterId != 0) {
+            Log.e(TAG, "Note " + afterId + " is not pinned in folder " + folderId);
+            return false;
+        }
+
+        long rank;
+        if (ranks.isEmpty()) {
+            rank = 0;
+        } else if (position == 0) {
+            rank = ranks.get(0) - PIN_RANK_GAP;
+        } else if (position == ranks.size()) {
+            rank = ranks.get(position - 1) + PIN_RANK_GAP;
+        } else if (ranks.get(position) - ranks.get(position - 1) >= 2) {
+            rank = ranks.get(position - 1) + (ranks.get(position) - ranks.get(position - 1)) / 2;
+        } else {
+            ids.add(position, noteId);
+            ArrayList<ContentProviderOperation> operationList =
+                    new ArrayList<ContentProviderOperation>();
+            for (int i = 0; i < ids.size(); i++) {
+                operationList.add(ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, ids.get(i)))
+                        .withValue(NoteColumns.PINNED, 1)
+                        .withValue(NoteColumns.PIN_RANK, (i + 1) * PIN_RANK_GAP)
+                        .build());
+            }
+            Log.d(TAG, "respace " + ids.size() + " pinned notes in folder " + folderId);
+            return applyBatch(resolver, operationList);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PINNED, 1);
+        values.put(NoteColumns.PIN_RANK, rank);
+        return resolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId),
+                values, null, null) > 0;
+    }
+
+    /**
+     * Set the sync ids of notes, given by note id, in one transaction
+     */
+    public static boolean batchSetSyncIds(ContentResolver resolver, Map<Long, Long> syncIds) {
+        if (syncIds.isEmpty()) {
+            return true;
+        }
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (Map.Entry<Long, Long> entry : syncIds.entrySet()) {
+            operationList.add(ContentProviderOperation
+                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, entry.getKey()))
+                    .withValue(NoteColumns.SYNC_ID, entry.getValue())
+                    .build());
+        }
+        return applyBatch(resolver, operationList);
+    }
+
+    /**
+     * Set the gtask ids of notes, given by note id, in one transaction
+     */
+    public static boolean batchSetGtaskIds(ContentResolver resolver, Map<Long, String> gtaskIds) {
+        if (gtaskIds.isEmpty()) {
+            return true;
+        }
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (Map.Entry<Long, String> entry : gtaskIds.entrySet()) {
+            operationList.add(ContentProviderOperation
+                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, entry.getKey()))
+                    .withValue(NoteColumns.GTASK_ID, entry.getValue())
+                    .build());
+        }
+        return applyBatch(resolver, operationList);
+    }
+
+    private static boolean applyBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operationList) {
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);
+            if (results == null || results.length == 0 || results[0] == null) {
+                Log.d(TAG, "update notes failed");
+                return false;
+            }
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return false;
+    }
+
     /**
      * Get the all folder count except system folders {@link Notes#TYPE_SYSTEM}}
      */
@@ -200,7 +483,8 @@ public class DataUtils {
     public static HashSet<AppWidgetAttribute> getFolderNoteWidget(ContentResolver resolver, long folderId) {
         Cursor c = resolver.query(Notes.CONTENT_NOTE_URI,
                 new String[] { NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE },
-                NoteColumns.PARENT_ID + "=?",
+                NoteColumns.PARENT_ID + " IN (SELECT " + FolderTreeColumns.DESCENDANT + " FROM "
+                        + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=?)",
                 new String[] { String.valueOf(folderId) },
                 null);
 
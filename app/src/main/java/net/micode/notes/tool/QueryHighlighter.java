@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.text.Spannable;
+import android.text.style.BackgroundColorSpan;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Highlights the terms of a search query in note text. The query is split on
+ * white space and every term is matched literally, ignoring case and
+ * diacritics. All terms are matched in one pass with an Aho-Corasick
+ * automaton, and only the requested range of the text is scanned so callers
+ * can highlight the visible part of a long note on demand.
+ */
+public class QueryHighlighter {
+    private static class Node {
+        HashMap<Character, Node> next = new HashMap<Character, Node>();
+        Node fail;
+        int depth;
+        // Length of the longest term ending at this state, 0 if none
+        int matchLength;
+    }
+
+    private Node mRoot;
+
+    private int mMaxTermLength;
+
+    private HashMap<Character, String> mFoldCache;
+
+    public QueryHighlighter(String query) {
+        mRoot = new Node();
+        mMaxTermLength = 0;
+        mFoldCache = new HashMap<Character, String>();
+        if (query != null) {
+            for (String term : query.trim().split("\\s+")) {
+                addTerm(fold(term));
+            }
+        }
+        buildFailLinks();
+    }
+
+    /**
+     * Whether the query has no term, in which case nothing is highlighted
+     */
+    public boolean isEmpty() {
+        return mMaxTermLength == 0;
+    }
+
+    private void addTerm(String term) {
+        if (term.length() == 0) {
+            return;
+        }
+        Node node = mRoot;
+        for (int i = 0; i < term.length(); i++) {
+            Character c = term.charAt(i);
+            Node child = node.next.get(c);
+            if (child == null) {
+                child = new Node();
+                child.depth = node.depth + 1;
+                node.next.put(c, child);
+            }
+            node = child;
+        }
+        node.matchLength = term.length();
+        mMaxTermLength = Math.max(mMaxTermLength, term.length());
+    }
+
+    private void buildFailLinks() {
+        ArrayList<Node> queue = new ArrayList<Node>();
+        mRoot.fail = mRoot;
+        for (Node child : mRoot.next.values()) {
+            child.fail = mRoot;
+            queue.add(child);
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            Node node = queue.get(i);
+            for (Character c : node.next.keySet()) {
+                Node child = node.next.get(c);
+                Node fail = node.fail;
+                while (fail != mRoot && !fail.next.containsKey(c)) {
+                    fail = fail.fail;
+                }
+                Node target = fail.next.get(c);
+                child.fail = (target != null) ? target : mRoot;
+                child.matchLength = Math.max(child.matchLength, child.fail.matchLength);
+                queue.add(child);
+            }
+        }
+    }
+
+    private Node step(Node node, char c) {
+        while (node != mRoot && !node.next.containsKey(c)) {
+            node = node.fail;
+        }
+        Node next = node.next.get(c);
+        return next == null ? mRoot : next;
+    }
+
+    /**
+     * Case and diacritic folding of a single char, may be empty for a
+     * combining mark or longer than one char for some lower case forms
+     */
+    private String fold(char c) {
+        if (c < 0x80) {
+            return String.valueOf(Character.toLowerCase(c));
+        }
+        String folded = mFoldCache.get(c);
+        if (folded == null) {
+            String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < decomposed.length(); i++) {
+                char d = decomposed.charAt(i);
+                if (Character.getType(d) != Character.NON_SPACING_MARK) {
+                    sb.append(d);
+                }
+            }
+            folded = sb.toString().toLowerCase(Locale.ROOT);
+            mFoldCache.put(c, folded);
+        }
+        return folded;
+    }
+
+    private String fold(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            sb.append(fold(s.charAt(i)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Add highlight spans for the matches starting in [start, end) of the text.
+     * Matches crossing the end are completed, so highlighting adjacent ranges
+     * one after another gives the same result as highlighting them at once.
+     *
+     * @return the number of spans added
+     */
+    public int highlight(Spannable text, int start, int end, int color) {
+        if (isEmpty() || text == null) {
+            return 0;
+        }
+        int length = text.length();
+        start = Math.max(0, start);
+        end = Math.min(length, end);
+
+        // Original index of the last folded chars, enough to locate any match start
+        int[] origin = new int[mMaxTermLength];
+        int folded = 0;
+        Node node = mRoot;
+        int spanStart = -1;
+        int spanEnd = -1;
+        int count = 0;
+        for (int i = start; i < length && (i < end || node.depth > 0); i++) {
+            String f = fold(text.charAt(i));
+            for (int j = 0; j < f.length(); j++) {
+                origin[folded % mMaxTermLength] = i;
+                folded++;
+                node = step(node, f.charAt(j));
+                if (node.matchLength == 0) {
+                    continue;
+                }
+                int matchStart = origin[(folded - node.matchLength) % mMaxTermLength];
+                if (matchStart >= end) {
+                    continue;
+                }
+                // Merge overlapping and adjacent matches into one span
+                if (spanStart != -1 && matchStart <= spanEnd) {
+                    spanStart = Math.min(spanStart, matchStart);
+                    spanEnd = i + 1;
+                } else {
+                    if (spanStart != -1) {
+                        setSpan(text, spanStart, spanEnd, color);
+                        count++;
+                    }
+                    spanStart = matchStart;
+                    spanEnd = i + 1;
+                }
+            }
+        }
+        if (spanStart != -1) {
+            setSpan(text, spanStart, spanEnd, color);
+            count++;
+        }
+        return count;
+    }
+
+    private static void setSpan(Spannable text, int start, int end, int color) {
+        text.setSpan(new BackgroundColorSpan(color), start, end,
+                Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import java.util.ArrayList;
+
+/**
+ * Item model behind the check list editor. Each item caches its serialized
+ * line, so only the items changed since the last {@link #serialize()} are
+ * formatted again, and an unchanged list returns the cached text directly.
+ */
+public class CheckListModel {
+    private static class Item {
+        String text;
+        boolean checked;
+        // Serialized form of this item, null when it has to be rebuilt
+        String line;
+
+        Item(String text, boolean checked) {
+            this.text = text;
+            this.checked = checked;
+        }
+    }
+
+    private ArrayList<Item> mItems;
+
+    private String mCachedText;
+
+    private boolean mHasChecked;
+
+    public CheckListModel() {
+        mItems = new ArrayList<Item>();
+        mCachedText = null;
+        mHasChecked = false;
+    }
+
+    /**
+     * Parse the note content into items, one item per non-empty line, and
+     * append an empty item for the user to type in
+     */
+    public void load(String text) {
+        mItems.clear();
+        mCachedText = null;
+        if (text != null) {
+            int start = 0;
+            int length = text.length();
+            while (start <= length) {
+                int end = text.indexOf('\n', start);
+                if (end == -1) {
+                    end = length;
+                }
+                if (end > start) {
+                    mItems.add(parseItem(text.substring(start, end)));
+                }
+                start = end + 1;
+            }
+        }
+        mItems.add(new Item("", false));
+    }
+
+    private static Item parseItem(String line) {
+        if (line.startsWith(NoteEditActivity.TAG_CHECKED)) {
+            return new Item(line.substring(NoteEditActivity.TAG_CHECKED.length()).trim(), true);
+        } else if (line.startsWith(NoteEditActivity.TAG_UNCHECKED)) {
+            return new Item(line.substring(NoteEditActivity.TAG_UNCHECKED.length()).trim(), false);
+        }
+        return new Item(line, false);
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public String getText(int index) {
+        return mItems.get(index).text;
+    }
+
+    public boolean isChecked(int index) {
+        return mItems.get(index).checked;
+    }
+
+    public void setText(int index, String text) {
+        Item item = mItems.get(index);
+        if (!item.text.equals(text)) {
+            item.text = text;
+            invalidate(item);
+        }
+    }
+
+    public void setChecked(int index, boolean checked) {
+        Item item = mItems.get(index);
+        if (item.checked != checked) {
+            item.checked = checked;
+            invalidate(item);
+        }
+    }
+
+    public void insert(int index, String text) {
+        mItems.add(index, new Item(text, false));
+        mCachedText = null;
+    }
+
+    public String remove(int index) {
+        Item item = mItems.remove(index);
+        mCachedText = null;
+        return item.text;
+    }
+
+    private void invalidate(Item item) {
+        item.line = null;
+        mCachedText = null;
+    }
+
+    /**
+     * Whether any non-empty item was checked as of the last {@link #serialize()}
+     */
+    public boolean hasChecked() {
+        serialize();
+        return mHasChecked;
+    }
+
+    /**
+     * Build the note content. Empty items are skipped the same way the
+     * editor has always done
+     */
+    public String serialize() {
+        if (mCachedText != null) {
+            return mCachedText;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        boolean hasChecked = false;
+        for (Item item : mItems) {
+            if (item.text.length() == 0) {
+                continue;
+            }
+            if (item.line == null) {
+                item.line = (item.checked ? NoteEditActivity.TAG_CHECKED
+                        : NoteEditActivity.TAG_UNCHECKED) + " " + item.text + "\n";
+            }
+            sb.append(item.line);
+            hasChecked |= item.checked;
+        }
+        mHasChecked = hasChecked;
+        mCachedText = sb.toString();
+        return mCachedText;
+    }
+}
@@ -30,11 +30,13 @@ import android.content.SharedPreferences;
 import android.graphics.Paint;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.Editable;
+import android.text.Layout;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
-import android.text.style.BackgroundColorSpan;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -42,22 +44,26 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver.OnScrollChangedListener;
 import android.view.WindowManager;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
-import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.NotePrefetchCache;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.QueryHighlighter;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
@@ -68,9 +74,6 @@ import net.micode.notes.widget.NoteWidgetProvider_4x;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 
 public class NoteEditActivity extends Activity implements OnClickListener,
         NoteSettingChangedListener, OnTextViewChangeListener {
@@ -128,7 +131,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private View mFontSizeSelector;
 
-    private EditText mNoteEditor;
+    private NoteEditText mNoteEditor;
 
     private View mNoteEditorPanel;
 
@@ -144,10 +147,21 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     public static final String TAG_CHECKED = String.valueOf('\u221A');
     public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
 
-    private LinearLayout mEditTextList;
+    private View mNoteEditorScroll;
+
+    private ListView mEditTextList;
+
+    private CheckListModel mCheckListModel;
+
+    private CheckListAdapter mCheckListAdapter;
 
     private String mUserQuery;
-    private Pattern mPattern;
+    private QueryHighlighter mHighlighter;
+    private int mHighlightColor;
+
+    // Range of mNoteEditor already scanned for the query terms
+    private int mHighlightStart;
+    private int mHighlightEnd;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -175,6 +189,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 finish();
                 return;
             }
+            mWorkingNote.getEditHistory().restoreState(savedInstanceState);
             Log.d(TAG, "Restoring from killed activity");
         }
     }
@@ -197,7 +212,13 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
             }
 
-            if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId, Notes.TYPE_NOTE)) {
+            // Known without a query if the notes list prefetched the note
+            Boolean visible = NotePrefetchCache.getInstance(this).isVisibleNote(noteId);
+            if (visible == null) {
+                visible = DataUtils.visibleInNoteDatabase(getContentResolver(), noteId,
+                        Notes.TYPE_NOTE);
+            }
+            if (!visible) {
                 Intent jump = new Intent(this, NotesListActivity.class);
                 startActivity(jump);
                 showToast(R.string.error_note_not_exist);
@@ -259,6 +280,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return false;
         }
         mWorkingNote.setOnSettingStatusChangedListener(this);
+        mHighlighter = new QueryHighlighter(mUserQuery);
         return true;
     }
 
@@ -271,10 +293,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     private void initNoteScreen() {
         mNoteEditor.setTextAppearance(this, TextAppearanceResources
                 .getTexAppearanceResource(mFontSizeId));
+        mNoteEditor.setEditHistory(mWorkingNote.getEditHistory());
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mWorkingNote.getContent());
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            setNoteEditorText(mWorkingNote.getContent());
             mNoteEditor.setSelection(mNoteEditor.getText().length());
         }
         for (Integer id : sBgSelectorSelectionMap.keySet()) {
@@ -330,6 +353,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             saveNote();
         }
         outState.putLong(Intent.EXTRA_UID, mWorkingNote.getNoteId());
+        mWorkingNote.getEditHistory().saveState(outState);
         Log.d(TAG, "Save working note id: " + mWorkingNote.getNoteId() + " onSaveInstanceState");
     }
 
@@ -371,7 +395,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mNoteHeaderHolder.tvAlertDate = (TextView) findViewById(R.id.tv_alert_date);
         mNoteHeaderHolder.ibSetBgColor = (ImageView) findViewById(R.id.btn_set_bg_color);
         mNoteHeaderHolder.ibSetBgColor.setOnClickListener(this);
-        mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        mNoteEditor = (NoteEditText) findViewById(R.id.note_edit_view);
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         mNoteBgColorSelector = findViewById(R.id.note_bg_color_selector);
         for (int id : sBgSelectorBtnsMap.keySet()) {
@@ -394,7 +418,18 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if(mFontSizeId >= TextAppearanceResources.getResourcesSize()) {
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        mNoteEditorScroll = findViewById(R.id.sv_note_edit_scroll);
+        mNoteEditorScroll.getViewTreeObserver().addOnScrollChangedListener(
+                new OnScrollChangedListener() {
+                    public void onScrollChanged() {
+                        highlightVisibleText();
+                    }
+                });
+        mHighlightColor = getResources().getColor(R.color.user_query_highlight);
+        mEditTextList = (ListView) findViewById(R.id.note_edit_list);
+        mCheckListModel = new CheckListModel();
+        mCheckListAdapter = new CheckListAdapter();
+        mEditTextList.setAdapter(mCheckListAdapter);
     }
 
     @Override
@@ -442,8 +477,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             mSharedPrefs.edit().putInt(PREFERENCE_FONT_SIZE, mFontSizeId).commit();
             findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
             if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-                getWorkingText();
-                switchToListMode(mWorkingNote.getContent());
+                // Only the visible rows are bound, so rebinding is enough
+                mCheckListAdapter.notifyDataSetChanged();
             } else {
                 mNoteEditor.setTextAppearance(this,
                         TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
@@ -497,6 +532,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         } else {
             menu.findItem(R.id.menu_list_mode).setTitle(R.string.menu_list_mode);
         }
+        boolean normalMode = mWorkingNote.getCheckListMode() != TextNote.MODE_CHECK_LIST;
+        menu.findItem(R.id.menu_undo).setVisible(normalMode
+                && mWorkingNote.getEditHistory().canUndo());
+        menu.findItem(R.id.menu_redo).setVisible(normalMode
+                && mWorkingNote.getEditHistory().canRedo());
         if (mWorkingNote.hasClockAlert()) {
             menu.findItem(R.id.menu_alert).setVisible(false);
         } else {
@@ -526,6 +566,12 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 builder.setNegativeButton(android.R.string.cancel, null);
                 builder.show();
                 break;
+            case R.id.menu_undo:
+                mNoteEditor.undo();
+                break;
+            case R.id.menu_redo:
+                mNoteEditor.redo();
+                break;
             case R.id.menu_font_size:
                 mFontSizeSelector.setVisibility(View.VISIBLE);
                 findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
@@ -647,128 +693,214 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     public void onEditTextDelete(int index, String text) {
-        int childCount = mEditTextList.getChildCount();
-        if (childCount == 1) {
+        if (mCheckListModel.size() == 1) {
             return;
         }
 
-        for (int i = index + 1; i < childCount; i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i - 1);
-        }
-
-        mEditTextList.removeViewAt(index);
-        NoteEditText edit = null;
-        if(index == 0) {
-            edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                    R.id.et_edit_text);
-        } else {
-            edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                    R.id.et_edit_text);
-        }
-        int length = edit.length();
-        edit.append(text);
-        edit.requestFocus();
-        edit.setSelection(length);
+        mCheckListModel.remove(index);
+        int target = (index == 0) ? 0 : index - 1;
+        String prev = mCheckListModel.getText(target);
+        mCheckListModel.setText(target, prev + text);
+        mCheckListAdapter.requestFocus(target, prev.length());
+        mCheckListAdapter.notifyDataSetChanged();
     }
 
     public void onEditTextEnter(int index, String text) {
         /**
          * Should not happen, check for debug
          */
-        if(index > mEditTextList.getChildCount()) {
+        if(index > mCheckListModel.size()) {
             Log.e(TAG, "Index out of mEditTextList boundrary, should not happen");
         }
 
-        View view = getListItem(text, index);
-        mEditTextList.addView(view, index);
-        NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.requestFocus();
-        edit.setSelection(0);
-        for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i);
+        mCheckListModel.insert(index, text);
+        mCheckListAdapter.requestFocus(index, 0);
+        mCheckListAdapter.notifyDataSetChanged();
+        if (index > mEditTextList.getLastVisiblePosition() - 1) {
+            mEditTextList.setSelection(index);
         }
     }
 
     private void switchToListMode(String text) {
-        mEditTextList.removeAllViews();
-        String[] items = text.split("\n");
-        int index = 0;
-        for (String item : items) {
-            if(!TextUtils.isEmpty(item)) {
-                mEditTextList.addView(getListItem(item, index));
-                index++;
-            }
-        }
-        mEditTextList.addView(getListItem("", index));
-        mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
+        mCheckListModel.load(text);
+        int last = mCheckListModel.size() - 1;
+        mCheckListAdapter.requestFocus(last, 0);
+        mCheckListAdapter.notifyDataSetChanged();
+        mEditTextList.setSelection(last);
 
-        mNoteEditor.setVisibility(View.GONE);
+        mNoteEditorScroll.setVisibility(View.GONE);
         mEditTextList.setVisibility(View.VISIBLE);
     }
 
-    private Spannable getHighlightQueryResult(String fullText, String userQuery) {
+    private Spannable getHighlightQueryResult(String fullText) {
         SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
-        if (!TextUtils.isEmpty(userQuery)) {
-            mPattern = Pattern.compile(userQuery);
-            Matcher m = mPattern.matcher(fullText);
-            int start = 0;
-            while (m.find(start)) {
-                spannable.setSpan(
-                        new BackgroundColorSpan(this.getResources().getColor(
-                                R.color.user_query_highlight)), m.start(), m.end(),
-                        Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                start = m.end();
-            }
-        }
+        mHighlighter.highlight(spannable, 0, spannable.length(), mHighlightColor);
         return spannable;
     }
 
-    private View getListItem(String item, int index) {
-        View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-        final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-        CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
-        cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                if (isChecked) {
-                    edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                } else {
-                    edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+    private void setNoteEditorText(String text) {
+        mNoteEditor.setTextIgnoreHistory(text);
+        mHighlightStart = 0;
+        mHighlightEnd = 0;
+        if (!mHighlighter.isEmpty()) {
+            // The layout of the new text is only ready after the next pass
+            mNoteEditor.post(new Runnable() {
+                public void run() {
+                    highlightVisibleText();
                 }
+            });
+        }
+    }
+
+    /**
+     * Only the lines on screen are scanned for the query, the scanned range
+     * grows as the note is scrolled so a long note is never scanned at once
+     */
+    private void highlightVisibleText() {
+        Layout layout = mNoteEditor.getLayout();
+        if (mHighlighter.isEmpty() || layout == null
+                || mNoteEditorScroll.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        int top = Math.max(0, mNoteEditorScroll.getScrollY() - mNoteEditor.getTop());
+        int bottom = top + mNoteEditorScroll.getHeight();
+        int start = layout.getLineStart(layout.getLineForVertical(top));
+        int end = layout.getLineEnd(layout.getLineForVertical(bottom));
+        Spannable text = mNoteEditor.getText();
+        if (mHighlightStart == mHighlightEnd) {
+            mHighlighter.highlight(text, start, end, mHighlightColor);
+            mHighlightStart = start;
+            mHighlightEnd = end;
+            return;
+        }
+        if (start < mHighlightStart) {
+            mHighlighter.highlight(text, start, mHighlightStart, mHighlightColor);
+            mHighlightStart = start;
+        }
+        if (end > mHighlightEnd) {
+            mHighlighter.highlight(text, mHighlightEnd, end, mHighlightColor);
+            mHighlightEnd = end;
+        }
+    }
+
+    private class CheckListItemHolder {
+        public NoteEditText edit;
+
+        public CheckBox cb;
+
+        public int position;
+    }
+
+    /**
+     * Binds the rows of {@link #mCheckListModel} on demand, so only the visible
+     * items of a long check list are inflated and the rows are recycled on scroll
+     */
+    private class CheckListAdapter extends BaseAdapter {
+        private int mFocusPosition = -1;
+
+        private int mFocusSelection;
+
+        private boolean mBinding;
+
+        public void requestFocus(int position, int selection) {
+            mFocusPosition = position;
+            mFocusSelection = selection;
+        }
+
+        public int getCount() {
+            return mCheckListModel.size();
+        }
+
+        public Object getItem(int position) {
+            return mCheckListModel.getText(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final CheckListItemHolder holder;
+            if (convertView == null) {
+                convertView = LayoutInflater.from(NoteEditActivity.this).inflate(
+                        R.layout.note_edit_list_item, parent, false);
+                holder = new CheckListItemHolder();
+                holder.edit = (NoteEditText) convertView.findViewById(R.id.et_edit_text);
+                holder.cb = (CheckBox) convertView.findViewById(R.id.cb_edit_item);
+                holder.edit.setOnTextViewChangeListener(NoteEditActivity.this);
+                holder.cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+                    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                        setStrikeThrough(holder.edit, isChecked);
+                        if (!mBinding) {
+                            mCheckListModel.setChecked(holder.position, isChecked);
+                        }
+                    }
+                });
+                holder.edit.addTextChangedListener(new TextWatcher() {
+                    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                    }
+
+                    public void onTextChanged(CharSequence s, int start, int before, int count) {
+                    }
+
+                    public void afterTextChanged(Editable s) {
+                        if (!mBinding && holder.position < mCheckListModel.size()) {
+                            mCheckListModel.setText(holder.position, s.toString());
+                        }
+                    }
+                });
+                convertView.setTag(holder);
+            } else {
+                holder = (CheckListItemHolder) convertView.getTag();
             }
-        });
 
-        if (item.startsWith(TAG_CHECKED)) {
-            cb.setChecked(true);
-            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-        } else if (item.startsWith(TAG_UNCHECKED)) {
-            cb.setChecked(false);
-            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
+            mBinding = true;
+            holder.position = position;
+            holder.edit.setIndex(position);
+            holder.edit.setTextAppearance(NoteEditActivity.this,
+                    TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+            holder.cb.setVisibility(View.VISIBLE);
+            holder.cb.setChecked(mCheckListModel.isChecked(position));
+            setStrikeThrough(holder.edit, mCheckListModel.isChecked(position));
+            holder.edit.setText(getHighlightQueryResult(mCheckListModel.getText(position)));
+            mBinding = false;
+
+            if (position == mFocusPosition) {
+                mFocusPosition = -1;
+                holder.edit.requestFocus();
+                holder.edit.setSelection(Math.min(mFocusSelection, holder.edit.length()));
+            }
+            return convertView;
         }
 
-        edit.setOnTextViewChangeListener(this);
-        edit.setIndex(index);
-        edit.setText(getHighlightQueryResult(item, mUserQuery));
-        return view;
+        private void setStrikeThrough(NoteEditText edit, boolean checked) {
+            if (checked) {
+                edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+            } else {
+                edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+            }
+        }
     }
 
     public void onTextChange(int index, boolean hasText) {
-        if (index >= mEditTextList.getChildCount()) {
+        if (index >= mCheckListModel.size()) {
             Log.e(TAG, "Wrong index, should not happen");
             return;
         }
+        View view = mEditTextList.getChildAt(index - mEditTextList.getFirstVisiblePosition());
+        if (view == null) {
+            return;
+        }
         if(hasText) {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
+            view.findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
         } else {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
+            view.findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
         }
     }
 
     public void onCheckListModeChanged(int oldMode, int newMode) {
+        // The edits of the other mode don't apply to the new text
+        mWorkingNote.getEditHistory().clear();
         if (newMode == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mNoteEditor.getText().toString());
         } else {
@@ -776,29 +908,17 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
                         ""));
             }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            setNoteEditorText(mWorkingNote.getContent());
             mEditTextList.setVisibility(View.GONE);
-            mNoteEditor.setVisibility(View.VISIBLE);
+            mNoteEditorScroll.setVisibility(View.VISIBLE);
         }
     }
 
     private boolean getWorkingText() {
         boolean hasChecked = false;
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-                View view = mEditTextList.getChildAt(i);
-                NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-                if (!TextUtils.isEmpty(edit.getText())) {
-                    if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                        sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                        hasChecked = true;
-                    } else {
-                        sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                    }
-                }
-            }
-            mWorkingNote.setWorkingText(sb.toString());
+            mWorkingNote.setWorkingText(mCheckListModel.serialize());
+            hasChecked = mCheckListModel.hasChecked();
         } else {
             mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
         }
@@ -18,11 +18,15 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.graphics.Rect;
+import android.text.Editable;
 import android.text.Layout;
 import android.text.Selection;
+import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.style.URLSpan;
+import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -33,6 +37,7 @@ import android.view.MotionEvent;
 import android.widget.EditText;
 
 import net.micode.notes.R;
+import net.micode.notes.model.EditHistory;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -77,9 +82,24 @@ public class NoteEditText extends EditText {
 
     private OnTextViewChangeListener mOnTextViewChangeListener;
 
+    private EditHistory mEditHistory;
+
+    // Set while the text is changed by undo, redo or the host, not by the user
+    private boolean mIgnoreHistory;
+
+    private TextWatcher mHistoryWatcher;
+
+    // Kinds of links detected as the text changes, 0 if link detection is off
+    private int mLinkMask;
+
+    private int mChangedStart;
+
+    private int mChangedEnd;
+
     public NoteEditText(Context context) {
         super(context, null);
         mIndex = 0;
+        initLinkDetection();
     }
 
     public void setIndex(int index) {
@@ -92,11 +112,143 @@ public class NoteEditText extends EditText {
 
     public NoteEditText(Context context, AttributeSet attrs) {
         super(context, attrs, android.R.attr.editTextStyle);
+        initLinkDetection();
     }
 
     public NoteEditText(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        // TODO Auto-generated constructor stub
+        initLinkDetection();
+    }
+
+    /**
+     * Take over android:autoLink from the framework, which links the whole text
+     * on every {@link #setText}. Instead only the paragraphs touched by a change
+     * are scanned again, and the links of the other paragraphs are left as they
+     * are. Only the kinds of link in {@link #sSchemaActionResMap} are detected
+     */
+    private void initLinkDetection() {
+        mLinkMask = getAutoLinkMask()
+                & (Linkify.WEB_URLS | Linkify.EMAIL_ADDRESSES | Linkify.PHONE_NUMBERS);
+        if (mLinkMask == 0) {
+            return;
+        }
+        setAutoLinkMask(0);
+        addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                mChangedStart = start;
+                mChangedEnd = start + count;
+            }
+
+            public void afterTextChanged(Editable s) {
+                updateLinks(s, mChangedStart, mChangedEnd);
+            }
+        });
+    }
+
+    private void updateLinks(Editable text, int start, int end) {
+        int length = text.length();
+        start = Math.max(0, Math.min(start, length));
+        end = Math.max(start, Math.min(end, length));
+        int paraStart = TextUtils.lastIndexOf(text, '\n', start - 1) + 1;
+        int paraEnd = TextUtils.indexOf(text, '\n', end);
+        if (paraEnd < 0) {
+            paraEnd = length;
+        }
+
+        URLSpan[] oldSpans = text.getSpans(paraStart, paraEnd, URLSpan.class);
+        for (URLSpan span : oldSpans) {
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+            if ((spanStart >= paraStart && spanEnd <= paraEnd)
+                    || (spanStart < paraEnd && spanEnd > paraStart)) {
+                text.removeSpan(span);
+            }
+        }
+
+        SpannableString paragraph = new SpannableString(
+                text.subSequence(paraStart, paraEnd).toString());
+        if (Linkify.addLinks(paragraph, mLinkMask)) {
+            for (URLSpan span : paragraph.getSpans(0, paragraph.length(), URLSpan.class)) {
+                text.setSpan(new URLSpan(span.getURL()),
+                        paraStart + paragraph.getSpanStart(span),
+                        paraStart + paragraph.getSpanEnd(span),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    /**
+     * Record the user's edits into the given history, null to stop recording
+     */
+    public void setEditHistory(EditHistory history) {
+        mEditHistory = history;
+        if (mHistoryWatcher == null) {
+            mHistoryWatcher = new TextWatcher() {
+                private CharSequence mRemoved;
+
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                    if (mEditHistory != null && !mIgnoreHistory) {
+                        mRemoved = s.subSequence(start, start + count).toString();
+                    }
+                }
+
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                    if (mEditHistory != null && !mIgnoreHistory && mRemoved != null) {
+                        mEditHistory.record(start, mRemoved,
+                                s.subSequence(start, start + count).toString());
+                    }
+                    mRemoved = null;
+                }
+
+                public void afterTextChanged(Editable s) {
+                }
+            };
+            addTextChangedListener(mHistoryWatcher);
+        }
+    }
+
+    /**
+     * Set the text without recording it as an edit of the user
+     */
+    public void setTextIgnoreHistory(CharSequence text) {
+        mIgnoreHistory = true;
+        setText(text);
+        mIgnoreHistory = false;
+    }
+
+    public boolean undo() {
+        if (mEditHistory == null) {
+            return false;
+        }
+        EditHistory.Edit edit = mEditHistory.undo();
+        return edit != null && applyEdit(edit.getStart(), edit.getInserted(), edit.getRemoved());
+    }
+
+    public boolean redo() {
+        if (mEditHistory == null) {
+            return false;
+        }
+        EditHistory.Edit edit = mEditHistory.redo();
+        return edit != null && applyEdit(edit.getStart(), edit.getRemoved(), edit.getInserted());
+    }
+
+    private boolean applyEdit(int start, CharSequence from, CharSequence to) {
+        Editable text = getText();
+        int end = start + from.length();
+        if (end > text.length() || !TextUtils.equals(text.subSequence(start, end), from)) {
+            // The text was changed outside of the history, it can't be applied any more
+            Log.w(TAG, "Edit history does not match the text, drop it");
+            mEditHistory.clear();
+            return false;
+        }
+        mIgnoreHistory = true;
+        text.replace(start, end, to);
+        mIgnoreHistory = false;
+        Selection.setSelection(text, start + to.length());
+        return true;
     }
 
     @Override
@@ -123,6 +275,13 @@ public class NoteEditText extends EditText {
 
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (mEditHistory != null && event.isCtrlPressed()) {
+            if (keyCode == KeyEvent.KEYCODE_Z) {
+                return event.isShiftPressed() ? redo() : undo();
+            } else if (keyCode == KeyEvent.KEYCODE_Y) {
+                return redo();
+            }
+        }
         switch (keyCode) {
             case KeyEvent.KEYCODE_ENTER:
                 if (mOnTextViewChangeListener != null) {
@@ -16,17 +16,45 @@
 
 package net.micode.notes.ui;
 
-import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.FolderTreeColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 import net.micode.notes.tool.DataUtils;
 
 
 public class NoteItemData {
+    /**
+     * Phone number of the call notes looked up in the same query, so binding a
+     * row of the call record folder doesn't query the data table again
+     */
+    private static final String CALL_NUMBER_SQL =
+        "(CASE WHEN " + NoteColumns.PARENT_ID + "=" + Notes.ID_CALL_RECORD_FOLDER +
+        " THEN (SELECT " + CallNote.PHONE_NUMBER + " FROM " + TABLE.DATA +
+        "  WHERE " + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+        "  AND " + DataColumns.MIME_TYPE + "='" + CallNote.CONTENT_ITEM_TYPE + "' LIMIT 1)" +
+        " ELSE '' END)";
+
+    /**
+     * Notes in the whole subtree of a folder, looked up through the folder
+     * tree so nested folders don't need a query each
+     */
+    private static final String SUBTREE_NOTES_COUNT_SQL =
+        "(CASE WHEN " + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        " THEN (SELECT COUNT(*) FROM " + TABLE.NOTE + " AS n" +
+        "  WHERE n." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+        "  AND n." + NoteColumns.PARENT_ID + " IN (SELECT " + FolderTreeColumns.DESCENDANT +
+        "   FROM " + TABLE.FOLDER_TREE + " WHERE " + FolderTreeColumns.ANCESTOR + "=" +
+        TABLE.NOTE + "." + NoteColumns.ID + "))" +
+        " ELSE " + NoteColumns.NOTES_COUNT + " END)";
+
     static final String [] PROJECTION = new String [] {
         NoteColumns.ID,
         NoteColumns.ALERTED_DATE,
@@ -34,12 +62,15 @@ public class NoteItemData {
         NoteColumns.CREATED_DATE,
         NoteColumns.HAS_ATTACHMENT,
         NoteColumns.MODIFIED_DATE,
-        NoteColumns.NOTES_COUNT,
+        SUBTREE_NOTES_COUNT_SQL,
         NoteColumns.PARENT_ID,
         NoteColumns.SNIPPET,
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        CALL_NUMBER_SQL,
+        NoteColumns.PINNED,
+        NoteColumns.PIN_RANK,
     };
 
     private static final int ID_COLUMN                    = 0;
@@ -54,6 +85,8 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int CALL_NUMBER_COLUMN           = 12;
+    private static final int PINNED_COLUMN                = 13;
 
     private long mId;
     private long mAlertDate;
@@ -64,11 +97,14 @@ public class NoteItemData {
     private int mNotesCount;
     private long mParentId;
     private String mSnippet;
+    private String mFormattedSnippet;
     private int mType;
     private int mWidgetId;
     private int mWidgetType;
+    private boolean mPinned;
     private String mName;
     private String mPhoneNumber;
+    private boolean mContactPending;
 
     private boolean mIsLastItem;
     private boolean mIsFirstItem;
@@ -76,7 +112,11 @@ public class NoteItemData {
     private boolean mIsOneNoteFollowingFolder;
     private boolean mIsMultiNotesFollowingFolder;
 
-    public NoteItemData(Context context, Cursor cursor) {
+    // Relative modified time, valid until the text would read differently
+    private CharSequence mRelativeTime;
+    private long mRelativeTimeValidUntil;
+
+    private NoteItemData(Cursor cursor) {
         mId = cursor.getLong(ID_COLUMN);
         mAlertDate = cursor.getLong(ALERTED_DATE_COLUMN);
         mBgColorId = cursor.getInt(BG_COLOR_ID_COLUMN);
@@ -88,47 +128,67 @@ public class NoteItemData {
         mSnippet = cursor.getString(SNIPPET_COLUMN);
         mSnippet = mSnippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
                 NoteEditActivity.TAG_UNCHECKED, "");
+        mFormattedSnippet = DataUtils.getFormattedSnippet(mSnippet);
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
+        mPinned = cursor.getInt(PINNED_COLUMN) > 0;
 
         mPhoneNumber = "";
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
+            mPhoneNumber = cursor.getString(CALL_NUMBER_COLUMN);
             if (!TextUtils.isEmpty(mPhoneNumber)) {
-                mName = Contact.getContact(context, mPhoneNumber);
+                // Names not looked up yet are loaded in the background by the adapter
+                mContactPending = !Contact.isContactCached(mPhoneNumber);
+                mName = Contact.getCachedContact(mPhoneNumber);
                 if (mName == null) {
                     mName = mPhoneNumber;
                 }
+            } else {
+                mPhoneNumber = "";
             }
         }
 
         if (mName == null) {
             mName = "";
         }
-        checkPostion(cursor);
-    }
-
-    private void checkPostion(Cursor cursor) {
-        mIsLastItem = cursor.isLast() ? true : false;
-        mIsFirstItem = cursor.isFirst() ? true : false;
-        mIsOnlyOneItem = (cursor.getCount() == 1);
-        mIsMultiNotesFollowingFolder = false;
-        mIsOneNoteFollowingFolder = false;
-
-        if (mType == Notes.TYPE_NOTE && !mIsFirstItem) {
-            int position = cursor.getPosition();
-            if (cursor.moveToPrevious()) {
-                if (cursor.getInt(TYPE_COLUMN) == Notes.TYPE_FOLDER
-                        || cursor.getInt(TYPE_COLUMN) == Notes.TYPE_SYSTEM) {
-                    if (cursor.getCount() > (position + 1)) {
-                        mIsMultiNotesFollowingFolder = true;
-                    } else {
-                        mIsOneNoteFollowingFolder = true;
-                    }
-                }
-                if (!cursor.moveToNext()) {
-                    throw new IllegalStateException("cursor move to previous but can't move back");
+    }
+
+    /**
+     * Read all the rows of the cursor in one forward pass, the position flags
+     * are taken from the neighbouring rows without moving the cursor back.
+     * Meant to run off the UI thread, the items are then reused for binding.
+     */
+    static NoteItemData[] fromCursor(Cursor cursor) {
+        int count = cursor.getCount();
+        NoteItemData[] items = new NoteItemData[count];
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            items[i] = new NoteItemData(cursor);
+        }
+        updatePositions(items, 0);
+        return items;
+    }
+
+    /**
+     * Set the position flags of the items from {@code from} on, for when
+     * items have been appended
+     */
+    static void updatePositions(NoteItemData[] items, int from) {
+        int count = items.length;
+        for (int i = Math.max(0, from); i < count && items[i] != null; i++) {
+            NoteItemData item = items[i];
+            item.mIsFirstItem = (i == 0);
+            item.mIsLastItem = (i == count - 1);
+            item.mIsOnlyOneItem = (count == 1);
+            item.mIsMultiNotesFollowingFolder = false;
+            item.mIsOneNoteFollowingFolder = false;
+            if (item.mType == Notes.TYPE_NOTE && i > 0 && items[i - 1] != null
+                    && (items[i - 1].mType == Notes.TYPE_FOLDER
+                            || items[i - 1].mType == Notes.TYPE_SYSTEM)) {
+                if (count > i + 1) {
+                    item.mIsMultiNotesFollowingFolder = true;
+                } else {
+                    item.mIsOneNoteFollowingFolder = true;
                 }
             }
         }
@@ -147,9 +207,25 @@ public class NoteItemData {
     }
 
     public String getCallName() {
+        if (mContactPending && Contact.isContactCached(mPhoneNumber)) {
+            // Loaded since the item was read, a miss leaves the number as the name
+            String name = Contact.getCachedContact(mPhoneNumber);
+            if (name != null) {
+                mName = name;
+            }
+            mContactPending = false;
+        }
         return mName;
     }
 
+    public String getPhoneNumber() {
+        return mPhoneNumber;
+    }
+
+    public boolean isContactPending() {
+        return mContactPending && !Contact.isContactCached(mPhoneNumber);
+    }
+
     public boolean isFirst() {
         return mIsFirstItem;
     }
@@ -210,15 +286,64 @@ public class NoteItemData {
         return mSnippet;
     }
 
+    /**
+     * The first line of the snippet, as shown in the list
+     */
+    public String getFormattedSnippet() {
+        return mFormattedSnippet;
+    }
+
+    /**
+     * The modified time relative to {@code now}, only formatted again once the
+     * cached text would read differently
+     */
+    public CharSequence getRelativeTime(long now) {
+        if (mRelativeTime == null || now >= mRelativeTimeValidUntil
+                || now < mModifiedDate) {
+            mRelativeTime = DateUtils.getRelativeTimeSpanString(mModifiedDate, now,
+                    DateUtils.MINUTE_IN_MILLIS);
+            mRelativeTimeValidUntil = getNextTimeChange(mModifiedDate, now);
+        }
+        return mRelativeTime;
+    }
+
+    /**
+     * When {@link #getRelativeTime} last formatted the time will need to change
+     */
+    public long getRelativeTimeValidUntil() {
+        return mRelativeTimeValidUntil;
+    }
+
+    /**
+     * Start of the next bucket of the relative time, minutes within the hour
+     * and hours within the week. Older times are shown as dates, which are
+     * only checked again once a day.
+     */
+    private static long getNextTimeChange(long time, long now) {
+        long age = now - time;
+        long bucket;
+        if (age < 0) {
+            return now + DateUtils.MINUTE_IN_MILLIS;
+        } else if (age < DateUtils.HOUR_IN_MILLIS) {
+            bucket = DateUtils.MINUTE_IN_MILLIS;
+        } else if (age < DateUtils.WEEK_IN_MILLIS) {
+            // Days are counted by date, so hourly also catches midnight
+            bucket = DateUtils.HOUR_IN_MILLIS;
+        } else {
+            return now + DateUtils.DAY_IN_MILLIS;
+        }
+        return time + (age / bucket + 1) * bucket;
+    }
+
     public boolean hasAlert() {
         return (mAlertDate > 0);
     }
 
-    public boolean isCallRecord() {
-        return (mParentId == Notes.ID_CALL_RECORD_FOLDER && !TextUtils.isEmpty(mPhoneNumber));
+    public boolean isPinned() {
+        return mPinned;
     }
 
-    public static int getNoteType(Cursor cursor) {
-        return cursor.getInt(TYPE_COLUMN);
+    public boolean isCallRecord() {
+        return (mParentId == Notes.ID_CALL_RECORD_FOLDER && !TextUtils.isEmpty(mPhoneNumber));
     }
 }
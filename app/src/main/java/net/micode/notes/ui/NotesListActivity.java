@@ -20,17 +20,15 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.appwidget.AppWidgetManager;
-import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
@@ -50,6 +48,8 @@ import android.view.View.OnClickListener;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.View.OnTouchListener;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
@@ -61,35 +61,33 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
+import net.micode.notes.data.FolderCache;
+import net.micode.notes.data.FolderCache.Folder;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.remote.GTaskSyncService;
-import net.micode.notes.model.WorkingNote;
+import net.micode.notes.model.NotePrefetchCache;
 import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
-import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
-    private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0;
-
-    private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
-
     private static final int MENU_FOLDER_DELETE = 0;
 
     private static final int MENU_FOLDER_VIEW = 1;
 
     private static final int MENU_FOLDER_CHANGE_NAME = 2;
 
-    private static final String PREFERENCE_ADD_INTRODUCTION = "net.micode.notes.introduction";
+    private static final int MENU_FOLDER_MOVE = 3;
+
+    // Delay to gather the change notifications of a batch into one query
+    private static final long REQUERY_DELAY = 100;
 
     private enum ListEditState {
         NOTE_LIST, SUB_FOLDER, CALL_RECORD_FOLDER
@@ -97,8 +95,6 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private ListEditState mState;
 
-    private BackgroundQueryHandler mBackgroundQueryHandler;
-
     private NotesListAdapter mNotesListAdapter;
 
     private ListView mNotesListView;
@@ -115,8 +111,31 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private long mCurrentFolderId;
 
+    // Folders opened from the root folder down to the current one
+    private ArrayList<NoteItemData> mFolderPath;
+
     private ContentResolver mContentResolver;
 
+    // Reads the pages of the list, replaced on every query of it
+    private NotesListPager mPager;
+
+    private int mSortOrder;
+
+    // Whether a change waiting for the requery may have added or removed notes
+    private boolean mRecountNotes;
+
+    // Whether the query running counts the notes, a newer one takes it over
+    private boolean mCountPending;
+
+    // Whether the StartupInitializer is done, the list isn't queried before
+    private boolean mStartupComplete;
+
+    private StartupInitializer.Callback mStartupCallback;
+
+    private boolean mStarted;
+
+    private boolean mFullyDrawnReported;
+
     private ModeCallback mModeCallBack;
 
     private static final String TAG = "NotesListActivity";
@@ -125,100 +144,118 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private NoteItemData mFocusNoteDataItem;
 
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
-
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
-
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
 
+    // Rows below the visible ones whose notes are prefetched too
+    private static final int PREFETCH_AHEAD = 5;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // Opens the database and adds the introduction note on the first
+        // launch while the layout is inflated
+        mStartupCallback = new StartupInitializer.Callback() {
+            public void onStartupComplete(int sortOrder) {
+                mSortOrder = sortOrder;
+                mStartupComplete = true;
+                if (mStarted) {
+                    startAsyncNotesListQuery();
+                }
+            }
+        };
+        StartupInitializer.start(this, mStartupCallback);
         setContentView(R.layout.note_list);
+        StartupInitializer.markColdStart("content view set");
         initResources();
+    }
 
-        /**
-         * Insert an introduction when user firstly use this application
-         */
-        setAppInfoFromRawRes();
+    @Override
+    protected void onDestroy() {
+        StartupInitializer.detach(mStartupCallback);
+        mNotesListView.removeCallbacks(mRequeryRunnable);
+        mNotesListAdapter.close();
+        super.onDestroy();
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (resultCode == RESULT_OK
-                && (requestCode == REQUEST_CODE_OPEN_NODE || requestCode == REQUEST_CODE_NEW_NODE)) {
-            mNotesListAdapter.changeCursor(null);
-        } else {
+        // After editing a note the list is queried again in onStart and only
+        // rebound if a row changed, so the current rows stay on screen
+        if (resultCode != RESULT_OK
+                || (requestCode != REQUEST_CODE_OPEN_NODE && requestCode != REQUEST_CODE_NEW_NODE)) {
             super.onActivityResult(requestCode, resultCode, data);
         }
     }
 
-    private void setAppInfoFromRawRes() {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        if (!sp.getBoolean(PREFERENCE_ADD_INTRODUCTION, false)) {
-            StringBuilder sb = new StringBuilder();
-            InputStream in = null;
-            try {
-                 in = getResources().openRawResource(R.raw.introduction);
-                if (in != null) {
-                    InputStreamReader isr = new InputStreamReader(in);
-                    BufferedReader br = new BufferedReader(isr);
-                    char [] buf = new char[1024];
-                    int len = 0;
-                    while ((len = br.read(buf)) > 0) {
-                        sb.append(buf, 0, len);
-                    }
-                } else {
-                    Log.e(TAG, "Read introduction file error");
-                    return;
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
-            } finally {
-                if(in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-            }
-
-            WorkingNote note = WorkingNote.createEmptyNote(this, Notes.ID_ROOT_FOLDER,
-                    AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE,
-                    ResourceParser.RED);
-            note.setWorkingText(sb.toString());
-            if (note.saveNote()) {
-                sp.edit().putBoolean(PREFERENCE_ADD_INTRODUCTION, true).commit();
-            } else {
-                Log.e(TAG, "Save introduction note error");
-                return;
-            }
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mStarted = true;
+        if (mStartupComplete) {
+            startAsyncNotesListQuery();
         }
+        mNotesListAdapter.setTimeRefreshEnabled(true);
+        FolderCache.getInstance(this).prefetch();
     }
 
     @Override
-    protected void onStart() {
-        super.onStart();
-        startAsyncNotesListQuery();
+    protected void onStop() {
+        mNotesListAdapter.setTimeRefreshEnabled(false);
+        mStarted = false;
+        super.onStop();
     }
 
     private void initResources() {
         mContentResolver = this.getContentResolver();
-        mBackgroundQueryHandler = new BackgroundQueryHandler(this.getContentResolver());
         mCurrentFolderId = Notes.ID_ROOT_FOLDER;
+        mFolderPath = new ArrayList<NoteItemData>();
         mNotesListView = (ListView) findViewById(R.id.notes_list);
         mNotesListView.addFooterView(LayoutInflater.from(this).inflate(R.layout.note_list_footer, null),
                 null, false);
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
+        mNotesListView.setOnScrollListener(new OnScrollListener() {
+            private int mScrollState = SCROLL_STATE_IDLE;
+
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                mScrollState = scrollState;
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                // Also called on every layout, so new rows are prefetched too
+                if (mScrollState == SCROLL_STATE_IDLE) {
+                    prefetchNotes(firstVisibleItem,
+                            firstVisibleItem + visibleItemCount + PREFETCH_AHEAD);
+                }
+            }
+        });
+        mNotesListView.setOnTouchListener(new OnTouchListener() {
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                    int position = mNotesListView.pointToPosition((int) event.getX(),
+                            (int) event.getY());
+                    if (position != AdapterView.INVALID_POSITION) {
+                        prefetchNotes(position, position + 1);
+                    }
+                }
+                return false;
+            }
+        });
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnContentChangedListener(new NotesListAdapter.OnContentChangedListener() {
+            public void onContentChanged(boolean countChanged) {
+                mRecountNotes |= countChanged;
+                mNotesListView.removeCallbacks(mRequeryRunnable);
+                mNotesListView.postDelayed(mRequeryRunnable, REQUERY_DELAY);
+            }
+        });
+        mNotesListAdapter.setOnLoadMoreListener(new NotesListAdapter.OnLoadMoreListener() {
+            public void onLoadMore() {
+                loadNextPage();
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter);
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
@@ -235,10 +272,16 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         private DropdownMenu mDropDownMenu;
         private ActionMode mActionMode;
         private MenuItem mMoveMenu;
+        private MenuItem mMoveUpMenu;
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
             getMenuInflater().inflate(R.menu.note_list_options, menu);
             menu.findItem(R.id.delete).setOnMenuItemClickListener(this);
+            menu.findItem(R.id.pin).setOnMenuItemClickListener(this);
+            menu.findItem(R.id.unpin).setOnMenuItemClickListener(this);
+            mMoveUpMenu = menu.findItem(R.id.move_up);
+            mMoveUpMenu.setOnMenuItemClickListener(this);
+            mMoveUpMenu.setVisible(false);
             mMoveMenu = menu.findItem(R.id.move);
             if (mFocusNoteDataItem.getParentId() == Notes.ID_CALL_RECORD_FOLDER
                     || DataUtils.getUserFolderCount(mContentResolver) == 0) {
@@ -274,6 +317,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             // Update dropdown menu
             String format = getResources().getString(R.string.menu_select_title, selectedCount);
             mDropDownMenu.setTitle(format);
+            mMoveUpMenu.setVisible(canMovePinnedNoteUp());
             MenuItem item = mDropDownMenu.findItem(R.id.action_select_all);
             if (item != null) {
                 if (mNotesListAdapter.isAllSelected()) {
@@ -321,29 +365,65 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
             switch (item.getItemId()) {
                 case R.id.delete:
-                    AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
-                    builder.setTitle(getString(R.string.alert_title_delete));
-                    builder.setIcon(android.R.drawable.ic_dialog_alert);
-                    builder.setMessage(getString(R.string.alert_message_delete_notes,
-                                             mNotesListAdapter.getSelectedCount()));
-                    builder.setPositiveButton(android.R.string.ok,
-                                             new DialogInterface.OnClickListener() {
-                                                 public void onClick(DialogInterface dialog,
-                                                         int which) {
-                                                     batchDelete();
-                                                 }
-                                             });
-                    builder.setNegativeButton(android.R.string.cancel, null);
-                    builder.show();
+                    if (mNotesListAdapter.isSelectAllMode()) {
+                        confirmDeleteFolderNotes();
+                    } else {
+                        confirmDelete(mNotesListAdapter.getSelectedCount());
+                    }
                     break;
                 case R.id.move:
-                    startQueryDestinationFolders();
+                    startQueryDestinationFolders(null);
+                    break;
+                case R.id.pin:
+                    batchSetPinned(true);
+                    break;
+                case R.id.unpin:
+                    batchSetPinned(false);
+                    break;
+                case R.id.move_up:
+                    movePinnedNoteUp();
                     break;
                 default:
                     return false;
             }
             return true;
         }
+
+        /**
+         * Count the notes the folder wide delete will remove, also the ones
+         * not loaded yet, before asking
+         */
+        private void confirmDeleteFolderNotes() {
+            final long folderId = mCurrentFolderId;
+            final HashSet<Long> excludedIds = mNotesListAdapter.getUnselectedItemIds();
+            new AsyncTask<Void, Void, Integer>() {
+                protected Integer doInBackground(Void... unused) {
+                    return DataUtils.getFolderNotesCount(mContentResolver, folderId, excludedIds);
+                }
+
+                protected void onPostExecute(Integer count) {
+                    if (mNotesListAdapter.isSelectAllMode()) {
+                        confirmDelete(count);
+                    }
+                }
+            }.execute();
+        }
+
+        private void confirmDelete(int count) {
+            AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
+            builder.setTitle(getString(R.string.alert_title_delete));
+            builder.setIcon(android.R.drawable.ic_dialog_alert);
+            builder.setMessage(getString(R.string.alert_message_delete_notes, count));
+            builder.setPositiveButton(android.R.string.ok,
+                                     new DialogInterface.OnClickListener() {
+                                         public void onClick(DialogInterface dialog,
+                                                 int which) {
+                                             batchDelete();
+                                         }
+                                     });
+            builder.setNegativeButton(android.R.string.cancel, null);
+            builder.show();
+        }
     }
 
     private class NewNoteOnTouchListener implements OnTouchListener {
@@ -408,48 +488,144 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     };
 
+    private final Runnable mRequeryRunnable = new Runnable() {
+        public void run() {
+            // The first query is run once the startup work is complete
+            if (mStartupComplete) {
+                boolean recount = mRecountNotes;
+                mRecountNotes = false;
+                startAsyncNotesListQuery(recount);
+            }
+        }
+    };
+
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+        startAsyncNotesListQuery(true);
     }
 
-    private final class BackgroundQueryHandler extends AsyncQueryHandler {
-        public BackgroundQueryHandler(ContentResolver contentResolver) {
-            super(contentResolver);
+    /**
+     * @param recount whether the notes of the folder may have changed in
+     * number, else the count taken before is kept
+     */
+    private void startAsyncNotesListQuery(boolean recount) {
+        int size = NotesListPager.PAGE_SIZE;
+        if (mPager != null && mPager.getFolderId() == mCurrentFolderId
+                && mPager.getSortOrder() == mSortOrder) {
+            // Read again as many rows as are shown, so a change doesn't cut the list
+            size = Math.max(size, mNotesListAdapter.getCount());
+        } else {
+            recount = true;
         }
+        final int firstPageSize = size;
+        final boolean countNotes = recount || mCountPending;
+        mCountPending = countNotes;
+        final NotesListPager pager = new NotesListPager(mContentResolver, mCurrentFolderId,
+                mSortOrder);
+        mPager = pager;
+        new AsyncTask<Void, Void, Cursor>() {
+            private int mNotesCount = -1;
+
+            protected Cursor doInBackground(Void... unused) {
+                Cursor cursor = pager.loadPage(firstPageSize);
+                // The whole folder, select all covers the pages not read yet.
+                // Without more pages the adapter counts the notes read.
+                if (countNotes && pager.hasMore()) {
+                    mNotesCount = DataUtils.getFolderNotesCount(mContentResolver,
+                            pager.getFolderId(), null);
+                }
+                return cursor;
+            }
 
-        @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            switch (token) {
-                case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
-                    break;
-                case FOLDER_LIST_QUERY_TOKEN:
-                    if (cursor != null && cursor.getCount() > 0) {
-                        showFolderListMenu(cursor);
-                    } else {
-                        Log.e(TAG, "Query folder failed");
-                    }
-                    break;
-                default:
+            protected void onPostExecute(Cursor cursor) {
+                if (pager != mPager) {
+                    // The folder or the order changed meanwhile
+                    cursor.close();
                     return;
+                }
+                mCountPending = false;
+                mNotesListAdapter.submitCursor(cursor, pager.getSortOrder(), pager.hasMore(),
+                        mNotesCount);
+                if (!mFullyDrawnReported) {
+                    mFullyDrawnReported = true;
+                    StartupInitializer.endColdStart();
+                    reportFullyDrawn();
+                }
             }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void loadNextPage() {
+        final NotesListPager pager = mPager;
+        if (pager == null || !pager.hasMore()) {
+            return;
         }
+        new AsyncTask<Void, Void, Cursor>() {
+            protected Cursor doInBackground(Void... unused) {
+                return pager.loadPage(NotesListPager.PAGE_SIZE);
+            }
+
+            protected void onPostExecute(Cursor cursor) {
+                if (pager != mPager) {
+                    cursor.close();
+                    return;
+                }
+                mNotesListAdapter.appendPage(cursor, pager.hasMore());
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    private void showFolderListMenu(Cursor cursor) {
+    /**
+     * Read ahead the notes of the list positions from {@code from} until
+     * {@code to}, so opening one of them doesn't query
+     */
+    private void prefetchNotes(int from, int to) {
+        int headers = mNotesListView.getHeaderViewsCount();
+        long[] ids = mNotesListAdapter.getNoteIds(from - headers, to - headers);
+        if (ids.length > 0) {
+            NotePrefetchCache.getInstance(this).prefetch(mContentResolver, ids);
+        }
+    }
+
+    private void showSortOrderDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.menu_sort);
+        builder.setSingleChoiceItems(R.array.sort_order_entries, mSortOrder,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which != mSortOrder) {
+                            NotesSortOrder.setSortOrder(NotesListActivity.this, which);
+                            mSortOrder = which;
+                            startAsyncNotesListQuery();
+                        }
+                        dialog.dismiss();
+                    }
+                });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.show();
+    }
+
+    /**
+     * Pick the destination of the selected notes, or of the folder if it's
+     * not null
+     */
+    private void showFolderListMenu(Cursor cursor, final NoteItemData folder) {
         AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
         builder.setTitle(R.string.menu_title_select_folder);
         final FoldersListAdapter adapter = new FoldersListAdapter(this, cursor);
         builder.setAdapter(adapter, new DialogInterface.OnClickListener() {
 
             public void onClick(DialogInterface dialog, int which) {
-                DataUtils.batchMoveToFolder(mContentResolver,
-                        mNotesListAdapter.getSelectedItemIds(), adapter.getItemId(which));
+                if (folder != null) {
+                    DataUtils.moveFolder(mContentResolver, folder.getId(), adapter.getItemId(which));
+                    return;
+                }
+                if (mNotesListAdapter.isSelectAllMode()) {
+                    DataUtils.batchMoveFolderNotes(mContentResolver, mCurrentFolderId,
+                            mNotesListAdapter.getUnselectedItemIds(), adapter.getItemId(which));
+                } else {
+                    DataUtils.batchMoveToFolder(mContentResolver,
+                            mNotesListAdapter.getSelectedItemIds(), adapter.getItemId(which));
+                }
                 Toast.makeText(
                         NotesListActivity.this,
                         getString(R.string.format_move_notes_to_folder,
@@ -470,6 +646,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void batchDelete() {
+        if (mNotesListAdapter.isSelectAllMode()) {
+            batchDeleteFolderNotes();
+            return;
+        }
         new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
             protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
                 HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
@@ -506,6 +686,115 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         }.execute();
     }
 
+    /**
+     * Pin the selected notes in the order they are listed, or unpin them. In
+     * select all mode the notes of the pages not loaded yet are read first
+     */
+    private void batchSetPinned(final boolean pinned) {
+        final long folderId = mCurrentFolderId;
+        final int sortOrder = mSortOrder;
+        final boolean selectAll = mNotesListAdapter.isSelectAllMode();
+        final HashSet<Long> excludedIds = mNotesListAdapter.getUnselectedItemIds();
+        final ArrayList<Long> selectedIds = mNotesListAdapter.getSelectedItemIdList();
+        new AsyncTask<Void, Void, Void>() {
+            protected Void doInBackground(Void... unused) {
+                ArrayList<Long> ids = selectedIds;
+                if (selectAll) {
+                    ids = new NotesListPager(mContentResolver, folderId, sortOrder).loadNoteIds();
+                    ids.removeAll(excludedIds);
+                }
+                if (!DataUtils.batchSetPinned(mContentResolver, folderId, ids, pinned)) {
+                    Log.e(TAG, "Pin notes error, should not happens");
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                mModeCallBack.finishActionMode();
+            }
+        }.execute();
+    }
+
+    private boolean isPinnedNote(int position) {
+        if (position < 0 || position >= mNotesListAdapter.getCount()) {
+            return false;
+        }
+        NoteItemData item = mNotesListAdapter.getItem(position);
+        return item.getType() == Notes.TYPE_NOTE && item.isPinned();
+    }
+
+    /**
+     * Whether the only selected note is pinned below another pinned note
+     */
+    private boolean canMovePinnedNoteUp() {
+        int position = mNotesListAdapter.getSingleSelectedPosition();
+        return isPinnedNote(position) && isPinnedNote(position - 1);
+    }
+
+    /**
+     * Move the selected pinned note above the pinned note before it
+     */
+    private void movePinnedNoteUp() {
+        if (!canMovePinnedNoteUp()) {
+            return;
+        }
+        int position = mNotesListAdapter.getSingleSelectedPosition();
+        final long folderId = mCurrentFolderId;
+        final long noteId = mNotesListAdapter.getItemId(position);
+        // Right after the pinned note two rows up, or on top if there is none
+        final long afterId = isPinnedNote(position - 2)
+                ? mNotesListAdapter.getItemId(position - 2) : 0;
+        new AsyncTask<Void, Void, Void>() {
+            protected Void doInBackground(Void... unused) {
+                if (!DataUtils.movePinnedNote(mContentResolver, folderId, noteId, afterId)) {
+                    Log.e(TAG, "Move pinned note error, should not happens");
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                mModeCallBack.finishActionMode();
+            }
+        }.execute();
+    }
+
+    /**
+     * Delete all the notes of the current folder except the ones left out
+     * of the selection, without visiting the rows of the list
+     */
+    private void batchDeleteFolderNotes() {
+        final long folderId = mCurrentFolderId;
+        final HashSet<Long> excludedIds = mNotesListAdapter.getUnselectedItemIds();
+        new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
+            protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
+                HashSet<AppWidgetAttribute> widgets = DataUtils.getFolderNoteWidget(
+                        mContentResolver, folderId);
+                if (!isSyncMode()) {
+                    DataUtils.batchDeleteFolderNotes(mContentResolver, folderId, excludedIds);
+                } else {
+                    DataUtils.batchMoveFolderNotes(mContentResolver, folderId, excludedIds,
+                            Notes.ID_TRASH_FOLER);
+                }
+                return widgets;
+            }
+
+            @Override
+            protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
+                if (widgets != null) {
+                    for (AppWidgetAttribute widget : widgets) {
+                        if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                                && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
+                            updateWidget(widget.widgetId, widget.widgetType);
+                        }
+                    }
+                }
+                mModeCallBack.finishActionMode();
+            }
+        }.execute();
+    }
+
     private void deleteFolder(long folderId) {
         if (folderId == Notes.ID_ROOT_FOLDER) {
             Log.e(TAG, "Wrong folder id, should not happen " + folderId);
@@ -541,6 +830,14 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void openFolder(NoteItemData data) {
+        if (mState == ListEditState.CALL_RECORD_FOLDER) {
+            Log.e(TAG, "Wrong note type in CALL_RECORD_FOLDER");
+            return;
+        }
+        if (mCurrentFolderId == Notes.ID_ROOT_FOLDER) {
+            mFolderPath.clear();
+        }
+        mFolderPath.add(data);
         mCurrentFolderId = data.getId();
         startAsyncNotesListQuery();
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
@@ -549,12 +846,17 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         } else {
             mState = ListEditState.SUB_FOLDER;
         }
+        showFolderTitle(data);
+        mTitleBar.setVisibility(View.VISIBLE);
+    }
+
+    private void showFolderTitle(NoteItemData data) {
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
             mTitleBar.setText(R.string.call_record_folder_name);
         } else {
-            mTitleBar.setText(data.getSnippet());
+            Folder folder = FolderCache.getInstance(this).peekFolder(data.getId());
+            mTitleBar.setText(folder != null ? folder.name : data.getSnippet());
         }
-        mTitleBar.setVisibility(View.VISIBLE);
     }
 
     public void onClick(View v) {
@@ -631,6 +933,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     ContentValues values = new ContentValues();
                     values.put(NoteColumns.SNIPPET, name);
                     values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+                    values.put(NoteColumns.PARENT_ID, mCurrentFolderId);
                     mContentResolver.insert(Notes.CONTENT_NOTE_URI, values);
                 }
                 dialog.dismiss();
@@ -668,6 +971,17 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     public void onBackPressed() {
         switch (mState) {
             case SUB_FOLDER:
+                // Back to the folder this one was opened from if it's nested
+                if (!mFolderPath.isEmpty()) {
+                    mFolderPath.remove(mFolderPath.size() - 1);
+                }
+                if (!mFolderPath.isEmpty()) {
+                    NoteItemData parent = mFolderPath.get(mFolderPath.size() - 1);
+                    mCurrentFolderId = parent.getId();
+                    showFolderTitle(parent);
+                    startAsyncNotesListQuery();
+                    break;
+                }
                 mCurrentFolderId = Notes.ID_ROOT_FOLDER;
                 mState = ListEditState.NOTE_LIST;
                 startAsyncNotesListQuery();
@@ -714,6 +1028,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 menu.add(0, MENU_FOLDER_VIEW, 0, R.string.menu_folder_view);
                 menu.add(0, MENU_FOLDER_DELETE, 0, R.string.menu_folder_delete);
                 menu.add(0, MENU_FOLDER_CHANGE_NAME, 0, R.string.menu_folder_change_name);
+                menu.add(0, MENU_FOLDER_MOVE, 0, R.string.menu_move);
             }
         }
     };
@@ -753,6 +1068,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             case MENU_FOLDER_CHANGE_NAME:
                 showCreateOrModifyFolderDialog(false);
                 break;
+            case MENU_FOLDER_MOVE:
+                startQueryDestinationFolders(mFocusNoteDataItem);
+                break;
             default:
                 break;
         }
@@ -812,6 +1130,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             case R.id.menu_search:
                 onSearchRequested();
                 break;
+            case R.id.menu_sort:
+                showSortOrderDialog();
+                break;
             default:
                 break;
         }
@@ -902,11 +1223,19 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                         }
                         break;
                     case SUB_FOLDER:
+                        if (item.getType() == Notes.TYPE_FOLDER) {
+                            openFolder(item);
+                        } else if (item.getType() == Notes.TYPE_NOTE) {
+                            openNode(item);
+                        } else {
+                            Log.e(TAG, "Wrong note type in SUB_FOLDER");
+                        }
+                        break;
                     case CALL_RECORD_FOLDER:
                         if (item.getType() == Notes.TYPE_NOTE) {
                             openNode(item);
                         } else {
-                            Log.e(TAG, "Wrong note type in SUB_FOLDER");
+                            Log.e(TAG, "Wrong note type in CALL_RECORD_FOLDER");
                         }
                         break;
                     default:
@@ -917,22 +1246,51 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     }
 
-    private void startQueryDestinationFolders() {
-        String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.ID + "<>?";
-        selection = (mState == ListEditState.NOTE_LIST) ? selection:
-            "(" + selection + ") OR (" + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
+    /**
+     * Pick the destination of the selected notes, or of the folder if it's
+     * not null
+     */
+    private void startQueryDestinationFolders(final NoteItemData folder) {
+        List<Folder> folders = FolderCache.getInstance(this).peekFolders();
+        if (folders != null) {
+            showDestinationFolders(folders, folder);
+            return;
+        }
+        new AsyncTask<Void, Void, List<Folder>>() {
+            protected List<Folder> doInBackground(Void... unused) {
+                return FolderCache.getInstance(NotesListActivity.this).getFolders();
+            }
 
-        mBackgroundQueryHandler.startQuery(FOLDER_LIST_QUERY_TOKEN,
-                null,
-                Notes.CONTENT_NOTE_URI,
-                FoldersListAdapter.PROJECTION,
-                selection,
-                new String[] {
-                        String.valueOf(Notes.TYPE_FOLDER),
-                        String.valueOf(Notes.ID_TRASH_FOLER),
-                        String.valueOf(mCurrentFolderId)
-                },
-                NoteColumns.MODIFIED_DATE + " DESC");
+            protected void onPostExecute(List<Folder> folders) {
+                if (folders != null) {
+                    showDestinationFolders(folders, folder);
+                } else {
+                    Log.e(TAG, "Query folder failed");
+                }
+            }
+        }.execute();
+    }
+
+    private void showDestinationFolders(List<Folder> folders, NoteItemData moving) {
+        // Folders other than the trash and the current one, and the root
+        // folder when not in it. A folder can't go into its own subtree.
+        FolderCache cache = FolderCache.getInstance(this);
+        long currentId = (moving != null) ? moving.getParentId() : mCurrentFolderId;
+        MatrixCursor cursor = new MatrixCursor(FoldersListAdapter.PROJECTION);
+        for (Folder folder : folders) {
+            if ((folder.type == Notes.TYPE_FOLDER && folder.parentId != Notes.ID_TRASH_FOLER
+                    && folder.id != currentId
+                    && (moving == null || !cache.isInSubtree(folder.id, moving.getId())))
+                    || (currentId != Notes.ID_ROOT_FOLDER && folder.id == Notes.ID_ROOT_FOLDER)) {
+                cursor.addRow(new Object[] { folder.id, folder.name });
+            }
+        }
+        if (cursor.getCount() > 0) {
+            showFolderListMenu(cursor, moving);
+        } else {
+            cursor.close();
+            Log.e(TAG, "Query folder failed");
+        }
     }
 
     public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
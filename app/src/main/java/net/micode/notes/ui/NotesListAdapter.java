@@ -17,56 +17,279 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 
+import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 
-public class NotesListAdapter extends CursorAdapter {
+/**
+ * Rows of the notes list. The pages of rows are read into {@link NoteItemData}
+ * in the background and closed right away, the rows are bound from them and
+ * the notes are watched for changes through the content resolver.
+ */
+public class NotesListAdapter extends BaseAdapter {
     private static final String TAG = "NotesListAdapter";
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
+    /**
+     * Positions of the selected notes, or in select all mode the positions
+     * of the notes left out of the selection
+     */
+    private BitSet mSelectedIndex;
+    private int mSelectedIndexCount;
+    private boolean mSelectAllMode;
+    // Notes of the whole folder, also the ones in the pages not loaded yet
     private int mNotesCount;
     private boolean mChoiceMode;
+    private Handler mHandler;
+    // Numbers of the bound call notes whose contact names are not loaded yet
+    private HashSet<String> mPendingNumbers;
+    private boolean mContactLoading;
+    // Rows of the list, to tell whether a new query changed anything
+    private long[] mRowIds;
+    private long[] mRowHashes;
+    // Folder, type and sort key of the rows, to tell whether a row has moved
+    private long[] mRowKeyHashes;
+    private int mSortOrder;
+    // Rows read in the background with the snapshot, reused for every bind
+    private NoteItemData[] mItems;
+    // When the first bound relative time needs to be formatted again
+    private long mNextTimeChange;
+    private boolean mTimeRefreshEnabled;
+    private int mSubmitGeneration;
+    private OnContentChangedListener mOnContentChangedListener;
+    private ContentObserver mChangeObserver;
+    // Views made for the list, to bind again only the rows which changed
+    private Set<NotesListItem> mViews;
+    private boolean mHasMore;
+    private boolean mLoadMoreRequested;
+    private OnLoadMoreListener mOnLoadMoreListener;
+
+    // Rows from the end of the loaded pages at which the next page is asked for
+    private static final int LOAD_MORE_DISTANCE = 20;
 
     public static class AppWidgetAttribute {
         public int widgetId;
         public int widgetType;
     };
 
+    /**
+     * Called when the notes have changed in a way a single row can't be
+     * updated for, the listener should run the query again off the UI thread
+     * and {@link #submitCursor} the result
+     */
+    public interface OnContentChangedListener {
+        /**
+         * @param countChanged whether notes may have been added to or removed
+         * from the folder, else only rows of the folder have moved
+         */
+        void onContentChanged(boolean countChanged);
+    }
+
+    /**
+     * Called when the bound rows get close to the end of the loaded pages,
+     * the listener should read the next page and {@link #appendPage} it
+     */
+    public interface OnLoadMoreListener {
+        void onLoadMore();
+    }
+
+    private static class RowSnapshot {
+        long[] ids;
+        long[] hashes;
+        long[] keyHashes;
+        NoteItemData[] items;
+    }
+
     public NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        mSelectedIndex = new BitSet();
         mContext = context;
         mNotesCount = 0;
+        mHandler = new Handler();
+        mPendingNumbers = new HashSet<String>();
+        mNextTimeChange = Long.MAX_VALUE;
+        mViews = Collections.newSetFromMap(new WeakHashMap<NotesListItem, Boolean>());
+        mChangeObserver = new ContentObserver(mHandler) {
+            @Override
+            public boolean deliverSelfNotifications() {
+                return true;
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                long noteId = getNoteId(uri);
+                if (noteId != 0 && indexOfRow(noteId) >= 0) {
+                    requeryRow(noteId);
+                } else {
+                    // Several notes, or a note not in the loaded rows
+                    requery(true);
+                }
+            }
+        };
+        context.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                mChangeObserver);
     }
 
-    @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return new NotesListItem(context);
+    /**
+     * Stop watching the notes, the adapter is not used any more
+     */
+    public void close() {
+        mContext.getContentResolver().unregisterContentObserver(mChangeObserver);
+        mHandler.removeCallbacks(mRefreshTime);
+        mHandler.removeCallbacks(mLoadContacts);
+        mHandler.removeCallbacks(mLoadMore);
+        mSubmitGeneration++;
+    }
+
+    public int getCount() {
+        return mItems == null ? 0 : mItems.length;
+    }
+
+    public NoteItemData getItem(int position) {
+        return mItems[position];
+    }
+
+    public long getItemId(int position) {
+        return mRowIds[position];
     }
 
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (view instanceof NotesListItem) {
-            NoteItemData itemData = new NoteItemData(context, cursor);
-            ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        NotesListItem view;
+        if (convertView instanceof NotesListItem) {
+            view = (NotesListItem) convertView;
+        } else {
+            view = new NotesListItem(mContext);
+            mViews.add(view);
         }
+        bindView(view, position);
+        return view;
     }
 
+    private void bindView(NotesListItem view, int position) {
+        NoteItemData itemData = mItems[position];
+        view.bind(mContext, itemData, mChoiceMode, isSelectedItem(position));
+        if (itemData.isContactPending()) {
+            requestContact(itemData.getPhoneNumber());
+        }
+        scheduleTimeRefresh(itemData.getRelativeTimeValidUntil());
+        if (mHasMore && !mLoadMoreRequested && mOnLoadMoreListener != null
+                && position >= getCount() - LOAD_MORE_DISTANCE) {
+            mLoadMoreRequested = true;
+            // Not while the list is laying out its rows
+            mHandler.post(mLoadMore);
+        }
+    }
+
+    private final Runnable mLoadMore = new Runnable() {
+        public void run() {
+            if (mOnLoadMoreListener != null) {
+                mOnLoadMoreListener.onLoadMore();
+            }
+        }
+    };
+
+    /**
+     * Rebind the rows when the relative time of a bound row goes out of date,
+     * only while enabled, i.e. while the list is on screen
+     */
+    public void setTimeRefreshEnabled(boolean enabled) {
+        mTimeRefreshEnabled = enabled;
+        mHandler.removeCallbacks(mRefreshTime);
+        if (enabled && mNextTimeChange != Long.MAX_VALUE) {
+            mHandler.postDelayed(mRefreshTime,
+                    Math.max(0, mNextTimeChange - System.currentTimeMillis()));
+        }
+    }
+
+    private void scheduleTimeRefresh(long time) {
+        if (time >= mNextTimeChange) {
+            return;
+        }
+        mNextTimeChange = time;
+        if (mTimeRefreshEnabled) {
+            mHandler.removeCallbacks(mRefreshTime);
+            mHandler.postDelayed(mRefreshTime, Math.max(0, time - System.currentTimeMillis()));
+        }
+    }
+
+    private final Runnable mRefreshTime = new Runnable() {
+        public void run() {
+            // Rebinding formats the expired times and schedules the next refresh
+            mNextTimeChange = Long.MAX_VALUE;
+            notifyDataSetChanged();
+        }
+    };
+
+    private void requestContact(String phoneNumber) {
+        if (mPendingNumbers.add(phoneNumber) && mPendingNumbers.size() == 1 && !mContactLoading) {
+            // Posted, so all the rows bound in this layout pass go in one batch
+            mHandler.post(mLoadContacts);
+        }
+    }
+
+    private final Runnable mLoadContacts = new Runnable() {
+        public void run() {
+            if (mContactLoading || mPendingNumbers.isEmpty()) {
+                return;
+            }
+            final HashSet<String> numbers = mPendingNumbers;
+            mPendingNumbers = new HashSet<String>();
+            mContactLoading = true;
+            new AsyncTask<Void, Void, Boolean>() {
+                protected Boolean doInBackground(Void... unused) {
+                    return Contact.prefetchContacts(mContext, numbers);
+                }
+
+                protected void onPostExecute(Boolean found) {
+                    mContactLoading = false;
+                    // Names are in the cache now, rebinding picks them up
+                    if (found) {
+                        notifyDataSetChanged();
+                    }
+                    if (!mPendingNumbers.isEmpty()) {
+                        mHandler.post(mLoadContacts);
+                    }
+                }
+            }.execute();
+        }
+    };
+
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
-        notifyDataSetChanged();
+        if (setIndex(position, mSelectAllMode ? !checked : checked)) {
+            notifyDataSetChanged();
+        }
+    }
+
+    private boolean setIndex(int position, boolean value) {
+        if (mSelectedIndex.get(position) == value) {
+            return false;
+        }
+        mSelectedIndex.set(position, value);
+        mSelectedIndexCount += value ? 1 : -1;
+        return true;
     }
 
     public boolean isInChoiceMode() {
@@ -74,73 +297,133 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        clearSelection();
         mChoiceMode = mode;
     }
 
+    private void clearSelection() {
+        mSelectedIndex.clear();
+        mSelectedIndexCount = 0;
+        mSelectAllMode = false;
+    }
+
+    /**
+     * Select or deselect all the notes of the folder at once. Selecting all
+     * doesn't visit the rows, the selection is kept as the notes left out, and
+     * the data layer applies it to the folder with {@link #getUnselectedItemIds}
+     */
     public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
+        clearSelection();
+        mSelectAllMode = checked;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Whether the selection is all the notes of the folder except
+     * {@link #getUnselectedItemIds}, rather than {@link #getSelectedItemIds}
+     */
+    public boolean isSelectAllMode() {
+        return mSelectAllMode;
+    }
+
+    public HashSet<Long> getSelectedItemIds() {
+        return new HashSet<Long>(getSelectedItemIdList());
+    }
+
+    /**
+     * Ids of the selected rows in list order, in select all mode only the
+     * notes loaded so far
+     */
+    public ArrayList<Long> getSelectedItemIdList() {
+        ArrayList<Long> itemList = new ArrayList<Long>();
+        if (mSelectAllMode) {
+            for (int i = 0; i < getCount(); i++) {
+                if (mItems[i].getType() == Notes.TYPE_NOTE && !mSelectedIndex.get(i)) {
+                    itemList.add(getItemId(i));
                 }
             }
+            return itemList;
+        }
+        for (int position = mSelectedIndex.nextSetBit(0); position >= 0;
+                position = mSelectedIndex.nextSetBit(position + 1)) {
+            Long id = getItemId(position);
+            if (id == Notes.ID_ROOT_FOLDER) {
+                Log.d(TAG, "Wrong item id, should not happen");
+            } else {
+                itemList.add(id);
+            }
         }
+
+        return itemList;
     }
 
-    public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
-                }
+    /**
+     * Position of the selected row if exactly one row is selected, else -1
+     */
+    public int getSingleSelectedPosition() {
+        if (mSelectAllMode || mSelectedIndexCount != 1) {
+            return -1;
+        }
+        return mSelectedIndex.nextSetBit(0);
+    }
+
+    /**
+     * Ids of the notes from position {@code from} until {@code to}, the
+     * folders are left out
+     */
+    public long[] getNoteIds(int from, int to) {
+        if (mItems == null) {
+            return new long[0];
+        }
+        to = Math.min(to, mItems.length);
+        long[] ids = new long[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = Math.max(0, from); i < to; i++) {
+            if (mItems[i] != null && mItems[i].getType() == Notes.TYPE_NOTE) {
+                ids[count++] = mItems[i].getId();
             }
         }
+        return Arrays.copyOf(ids, count);
+    }
 
+    /**
+     * Ids of the notes left out of the selection in select all mode
+     */
+    public HashSet<Long> getUnselectedItemIds() {
+        HashSet<Long> itemSet = new HashSet<Long>();
+        if (mSelectAllMode) {
+            for (int position = mSelectedIndex.nextSetBit(0); position >= 0;
+                    position = mSelectedIndex.nextSetBit(position + 1)) {
+                itemSet.add(getItemId(position));
+            }
+        }
         return itemSet;
     }
 
     public HashSet<AppWidgetAttribute> getSelectedWidget() {
         HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
+        // Only the set bits are visited unless everything is selected
+        int position = mSelectAllMode ? 0 : mSelectedIndex.nextSetBit(0);
+        for (; position >= 0 && position < getCount();
+                position = mSelectAllMode ? position + 1 : mSelectedIndex.nextSetBit(position + 1)) {
+            if (isSelectedItem(position)) {
+                NoteItemData item = mItems[position];
+                AppWidgetAttribute widget = new AppWidgetAttribute();
+                widget.widgetId = item.getWidgetId();
+                widget.widgetType = item.getWidgetType();
+                itemSet.add(widget);
             }
         }
         return itemSet;
     }
 
+    /**
+     * Size of the selection, in select all mode it also counts the notes of
+     * the folder which have not been loaded yet
+     */
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++;
-            }
-        }
-        return count;
+        return mSelectAllMode ? Math.max(0, mNotesCount - mSelectedIndexCount)
+                : mSelectedIndexCount;
     }
 
     public boolean isAllSelected() {
@@ -149,36 +432,332 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
+        if (mSelectAllMode) {
+            return position < getCount() && mItems[position].getType() == Notes.TYPE_NOTE
+                    && !mSelectedIndex.get(position);
         }
         return mSelectedIndex.get(position);
     }
 
-    @Override
-    protected void onContentChanged() {
-        super.onContentChanged();
-        calcNotesCount();
+    public void setOnContentChangedListener(OnContentChangedListener listener) {
+        mOnContentChangedListener = listener;
     }
 
-    @Override
-    public void changeCursor(Cursor cursor) {
-        super.changeCursor(cursor);
-        calcNotesCount();
+    public void setOnLoadMoreListener(OnLoadMoreListener listener) {
+        mOnLoadMoreListener = listener;
+    }
+
+    private void requery(boolean countChanged) {
+        // Don't requery on the UI thread, see OnContentChangedListener
+        if (mOnContentChangedListener != null) {
+            mOnContentChangedListener.onContentChanged(countChanged);
+        }
+    }
+
+    /**
+     * Id of the note of a single note uri, 0 for any other uri
+     */
+    private static long getNoteId(Uri uri) {
+        if (uri == null) {
+            return 0;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2
+                || !Notes.CONTENT_NOTE_URI.getPathSegments().get(0).equals(segments.get(0))) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Wrong note uri " + uri);
+            return 0;
+        }
+    }
+
+    private int indexOfRow(long id) {
+        if (mRowIds != null) {
+            for (int i = 0; i < mRowIds.length; i++) {
+                if (mRowIds[i] == id) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read again the row of a changed note alone, and bind it in place if it
+     * is still in the folder at the same place. Else the whole list is read
+     * again.
+     */
+    private void requeryRow(final long noteId) {
+        final int generation = mSubmitGeneration;
+        final int sortOrder = mSortOrder;
+        new AsyncTask<Void, Void, RowSnapshot>() {
+            protected RowSnapshot doInBackground(Void... unused) {
+                Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                        NoteItemData.PROJECTION, NoteColumns.ID + "=?",
+                        new String[] { String.valueOf(noteId) }, null);
+                if (cursor == null) {
+                    Log.e(TAG, "Read note " + noteId + " failed");
+                    return null;
+                }
+                try {
+                    return takeSnapshot(cursor, sortOrder);
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            protected void onPostExecute(RowSnapshot snapshot) {
+                if (generation != mSubmitGeneration) {
+                    // The rows have been replaced, they may not have the change
+                    requery(true);
+                    return;
+                }
+                int position = indexOfRow(noteId);
+                if (snapshot == null || snapshot.ids.length == 0 || position < 0) {
+                    // Deleted, or gone with a newer query
+                    requery(true);
+                    return;
+                }
+                if (snapshot.keyHashes[0] != mRowKeyHashes[position]) {
+                    // Moved within the folder or out of it
+                    requery(snapshot.items[0].getParentId() != mItems[position].getParentId());
+                    return;
+                }
+                if (snapshot.hashes[0] == mRowHashes[position]) {
+                    return;
+                }
+                mItems[position] = snapshot.items[0];
+                mRowHashes[position] = snapshot.hashes[0];
+                NoteItemData.updatePositions(mItems, position);
+                BitSet changed = new BitSet(mItems.length);
+                changed.set(position);
+                bindChangedRows(changed);
+            }
+        }.execute();
     }
 
-    private void calcNotesCount() {
+    private void clear() {
+        mSubmitGeneration++;
+        mRowIds = null;
+        mRowHashes = null;
+        mRowKeyHashes = null;
+        mItems = null;
         mNotesCount = 0;
-        for (int i = 0; i < getCount(); i++) {
-            Cursor c = (Cursor) getItem(i);
-            if (c != null) {
-                if (NoteItemData.getNoteType(c) == Notes.TYPE_NOTE) {
-                    mNotesCount++;
+        mHasMore = false;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Take the result of a new query, the cursor is closed once read. The
+     * rows are compared with the current ones in the background. If the
+     * same rows are in the same order, only the views of the changed rows
+     * are bound again, so editing a note rebinds its row alone and the list
+     * keeps its rows and scroll position. Only rows added, removed or moved
+     * make the list lay out its rows again.
+     *
+     * @param sortOrder order of the rows, from {@link NotesSortOrder}
+     * @param hasMore whether more rows can be read after the cursor, they are
+     * asked for with {@link OnLoadMoreListener}
+     * @param notesCount notes in the folder, counted with the query, for the
+     * size of the selection in select all mode. -1 keeps the current count,
+     * and without more rows the notes of the cursor are counted.
+     */
+    public void submitCursor(final Cursor cursor, final int sortOrder, final boolean hasMore,
+            final int notesCount) {
+        if (cursor == null) {
+            clear();
+            return;
+        }
+        final int generation = ++mSubmitGeneration;
+        new AsyncTask<Void, Void, RowSnapshot>() {
+            protected RowSnapshot doInBackground(Void... unused) {
+                try {
+                    return takeSnapshot(cursor, sortOrder);
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            protected void onPostExecute(RowSnapshot snapshot) {
+                if (generation != mSubmitGeneration) {
+                    // A newer query has been submitted, it keeps the count
+                    // unless it has counted itself
+                    if (notesCount >= 0) {
+                        mNotesCount = notesCount;
+                    }
+                    return;
+                }
+                // A page asked for meanwhile was dropped, ask again below
+                boolean loadMore = mLoadMoreRequested;
+                mHasMore = hasMore;
+                mLoadMoreRequested = false;
+                if (!hasMore) {
+                    mNotesCount = countNotes(snapshot.items);
+                } else if (notesCount >= 0) {
+                    mNotesCount = notesCount;
+                }
+                if (mItems != null && sortOrder == mSortOrder
+                        && Arrays.equals(snapshot.ids, mRowIds)) {
+                    updateRows(snapshot);
+                } else {
+                    mSortOrder = sortOrder;
+                    mRowIds = snapshot.ids;
+                    mRowHashes = snapshot.hashes;
+                    mRowKeyHashes = snapshot.keyHashes;
+                    mItems = snapshot.items;
+                    // Pages asked for on the old rows don't follow the new ones
+                    mSubmitGeneration++;
+                    notifyDataSetChanged();
+                }
+                if (loadMore && mHasMore && mOnLoadMoreListener != null) {
+                    mLoadMoreRequested = true;
+                    mHandler.post(mLoadMore);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Take the changed rows of a snapshot of the same rows, and bind again
+     * the views showing them, the other views are left alone
+     */
+    private void updateRows(RowSnapshot snapshot) {
+        BitSet changed = new BitSet(mItems.length);
+        for (int i = 0; i < mItems.length; i++) {
+            if (snapshot.hashes[i] != mRowHashes[i]) {
+                mItems[i] = snapshot.items[i];
+                mRowHashes[i] = snapshot.hashes[i];
+                mRowKeyHashes[i] = snapshot.keyHashes[i];
+                changed.set(i);
+            }
+        }
+        bindChangedRows(changed);
+    }
+
+    /**
+     * Bind again the views showing the rows at the set positions
+     */
+    private void bindChangedRows(BitSet changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        for (NotesListItem view : mViews) {
+            NoteItemData bound = view.getItemData();
+            if (bound == null) {
+                continue;
+            }
+            for (int position = changed.nextSetBit(0); position >= 0;
+                    position = changed.nextSetBit(position + 1)) {
+                if (mRowIds[position] == bound.getId()) {
+                    bindView(view, position);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the next page of rows after the current ones, the page is closed
+     * once read. The rows already bound are kept as they are, only the new
+     * page is read in the background.
+     */
+    public void appendPage(final Cursor page, final boolean hasMore) {
+        final int generation = mSubmitGeneration;
+        final int sortOrder = mSortOrder;
+        if (mRowIds == null || page.getCount() == 0) {
+            page.close();
+            mHasMore = hasMore && mRowIds != null;
+            mLoadMoreRequested = false;
+            return;
+        }
+        new AsyncTask<Void, Void, RowSnapshot>() {
+            protected RowSnapshot doInBackground(Void... unused) {
+                try {
+                    return takeSnapshot(page, sortOrder);
+                } finally {
+                    page.close();
+                }
+            }
+
+            protected void onPostExecute(RowSnapshot snapshot) {
+                if (generation != mSubmitGeneration) {
+                    // The rows have been replaced since the page was asked for
+                    return;
+                }
+                int count = mRowIds.length;
+                int total = count + snapshot.ids.length;
+                mRowIds = Arrays.copyOf(mRowIds, total);
+                System.arraycopy(snapshot.ids, 0, mRowIds, count, snapshot.ids.length);
+                mRowHashes = Arrays.copyOf(mRowHashes, total);
+                System.arraycopy(snapshot.hashes, 0, mRowHashes, count, snapshot.hashes.length);
+                mRowKeyHashes = Arrays.copyOf(mRowKeyHashes, total);
+                System.arraycopy(snapshot.keyHashes, 0, mRowKeyHashes, count,
+                        snapshot.keyHashes.length);
+                mItems = Arrays.copyOf(mItems, total);
+                System.arraycopy(snapshot.items, 0, mItems, count, snapshot.items.length);
+                // The last row before the page is no longer the last one
+                NoteItemData.updatePositions(mItems, count - 1);
+                mHasMore = hasMore;
+                mLoadMoreRequested = false;
+                notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
+    private static int countNotes(NoteItemData[] items) {
+        int count = 0;
+        for (NoteItemData item : items) {
+            if (item.getType() == Notes.TYPE_NOTE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static RowSnapshot takeSnapshot(Cursor cursor, int sortOrder) {
+        RowSnapshot snapshot = new RowSnapshot();
+        int count = cursor.getCount();
+        int[] columns = new int[cursor.getColumnCount() - 1];
+        for (int column = 0; column < columns.length; column++) {
+            columns[column] = column + 1;
+        }
+        // What places the row in the list, pinned rows are placed by their rank
+        int[] keyColumns = new int[] {
+            cursor.getColumnIndex(NoteColumns.PARENT_ID),
+            cursor.getColumnIndex(NoteColumns.TYPE),
+            cursor.getColumnIndex(NoteColumns.PINNED),
+            cursor.getColumnIndex(NoteColumns.PIN_RANK),
+            cursor.getColumnIndex(NotesSortOrder.getKeyColumn(sortOrder))
+        };
+        snapshot.ids = new long[count];
+        snapshot.hashes = new long[count];
+        snapshot.keyHashes = new long[count];
+        snapshot.items = NoteItemData.fromCursor(cursor);
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            snapshot.ids[i] = cursor.getLong(0);
+            snapshot.hashes[i] = hashColumns(cursor, columns);
+            snapshot.keyHashes[i] = hashColumns(cursor, keyColumns);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 64-bit FNV-1a over the columns of the current row
+     */
+    private static long hashColumns(Cursor cursor, int[] columns) {
+        long hash = 0xcbf29ce484222325L;
+        for (int column : columns) {
+            String value = cursor.getString(column);
+            if (value != null) {
+                for (int j = 0; j < value.length(); j++) {
+                    hash = (hash ^ value.charAt(j)) * 0x100000001b3L;
                 }
-            } else {
-                Log.e(TAG, "Invalid cursor");
-                return;
             }
+            hash = (hash ^ (value == null ? 0xff : 0xfe)) * 0x100000001b3L;
         }
+        return hash;
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+
+/**
+ * Reads the rows of a folder in the notes list a page at a time. The rows are
+ * read one type after the other, the call record folder in the root folder,
+ * then the folders, then the pinned notes by rank, then the other notes. Within a type a page starts from the last
+ * row read, by its sort key and id, so it costs the same at any depth of a
+ * large folder. {@link #loadPage} queries the database and should not be
+ * called on the UI thread, nor for two pages at once.
+ */
+public class NotesListPager {
+    private static final String TAG = "NotesListPager";
+
+    public static final int PAGE_SIZE = 100;
+
+    private static final String CALL_RECORD_SELECTION = NoteColumns.ID + "="
+            + Notes.ID_CALL_RECORD_FOLDER + " AND " + NoteColumns.NOTES_COUNT + ">0";
+
+    private static final String TYPE_SELECTION = NoteColumns.PARENT_ID + "=? AND "
+            + NoteColumns.TYPE + "=? AND " + NoteColumns.PINNED + "=?";
+
+    private ContentResolver mResolver;
+
+    private long mFolderId;
+
+    private int mSortOrder;
+
+    // Type and pinned state being read and the last row read of them, no key
+    // before their first row
+    private int mType;
+
+    private boolean mPinned;
+
+    private String mLastKey;
+
+    private long mLastId;
+
+    private boolean mHasMore;
+
+    public NotesListPager(ContentResolver resolver, long folderId, int sortOrder) {
+        mResolver = resolver;
+        mFolderId = folderId;
+        mSortOrder = sortOrder;
+        mType = Notes.TYPE_SYSTEM;
+        mHasMore = true;
+    }
+
+    public long getFolderId() {
+        return mFolderId;
+    }
+
+    public int getSortOrder() {
+        return mSortOrder;
+    }
+
+    /**
+     * Whether rows may be left after the last page
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /**
+     * Read the next {@code size} rows at most, an empty cursor at the end
+     */
+    public Cursor loadPage(int size) {
+        ArrayList<Cursor> cursors = new ArrayList<Cursor>();
+        int remaining = size;
+        while (remaining > 0 && mHasMore) {
+            if (mType == Notes.TYPE_SYSTEM) {
+                if (mFolderId == Notes.ID_ROOT_FOLDER) {
+                    Cursor c = query(CALL_RECORD_SELECTION, null, mSortOrder, 1);
+                    remaining -= add(cursors, c);
+                }
+                nextType();
+                continue;
+            }
+
+            int order = mPinned ? NotesSortOrder.PIN_RANK : mSortOrder;
+            String selection = TYPE_SELECTION;
+            String[] args = new String[] {
+                String.valueOf(mFolderId), String.valueOf(mType), mPinned ? "1" : "0"
+            };
+            if (mLastKey != null) {
+                selection += " AND " + NotesSortOrder.getAfterSelection(order);
+                String[] after = NotesSortOrder.getAfterArgs(mLastKey, mLastId);
+                String[] all = new String[args.length + after.length];
+                System.arraycopy(args, 0, all, 0, args.length);
+                System.arraycopy(after, 0, all, args.length, after.length);
+                args = all;
+            }
+            Cursor c = query(selection, args, order, remaining);
+            if (c == null) {
+                mHasMore = false;
+                break;
+            }
+            int count = c.getCount();
+            if (count > 0 && c.moveToLast()) {
+                mLastKey = c.getString(c.getColumnIndex(NotesSortOrder.getKeyColumn(order)));
+                mLastId = c.getLong(c.getColumnIndex(NoteColumns.ID));
+            }
+            add(cursors, c);
+            if (count < remaining) {
+                // All the rows of this type have been read
+                nextType();
+            }
+            remaining -= count;
+        }
+
+        if (cursors.isEmpty()) {
+            return new MatrixCursor(NoteItemData.PROJECTION);
+        }
+        return cursors.size() == 1 ? cursors.get(0)
+                : new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+    }
+
+    /**
+     * Read the ids of the notes in all the pages left, in list order, for
+     * the selection of the whole folder when the order matters
+     */
+    public ArrayList<Long> loadNoteIds() {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        while (mHasMore) {
+            Cursor c = loadPage(PAGE_SIZE);
+            try {
+                int idColumn = c.getColumnIndex(NoteColumns.ID);
+                int typeColumn = c.getColumnIndex(NoteColumns.TYPE);
+                while (c.moveToNext()) {
+                    if (c.getInt(typeColumn) == Notes.TYPE_NOTE) {
+                        ids.add(c.getLong(idColumn));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return ids;
+    }
+
+    private void nextType() {
+        if (mType == Notes.TYPE_SYSTEM) {
+            mType = Notes.TYPE_FOLDER;
+        } else if (mType == Notes.TYPE_FOLDER) {
+            mType = Notes.TYPE_NOTE;
+            mPinned = true;
+        } else if (mPinned) {
+            mPinned = false;
+        } else {
+            mHasMore = false;
+        }
+        mLastKey = null;
+    }
+
+    private Cursor query(String selection, String[] args, int order, int limit) {
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+        Cursor c = mResolver.query(uri, NoteItemData.PROJECTION, selection, args,
+                NotesSortOrder.getOrderBy(order));
+        if (c == null) {
+            Log.e(TAG, "Query notes of folder " + mFolderId + " failed");
+        }
+        return c;
+    }
+
+    private static int add(ArrayList<Cursor> cursors, Cursor c) {
+        if (c == null) {
+            return 0;
+        }
+        if (c.getCount() == 0) {
+            c.close();
+            return 0;
+        }
+        cursors.add(c);
+        return c.getCount();
+    }
+}
@@ -46,6 +46,7 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.remote.GTaskSyncService;
+import net.micode.notes.gtask.remote.SyncWatermarks;
 
 
 public class NotesPreferenceActivity extends PreferenceActivity {
@@ -301,6 +302,7 @@ public class NotesPreferenceActivity extends PreferenceActivity {
 
             // clean up last sync time
             setLastSyncTime(this, 0);
+            SyncWatermarks.clear(this);
 
             // clean up local gtask related info
             new Thread(new Runnable() {
@@ -328,6 +330,7 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             editor.remove(PREFERENCE_LAST_SYNC_TIME);
         }
         editor.commit();
+        SyncWatermarks.clear(this);
 
         // clean up local gtask related info
         new Thread(new Runnable() {
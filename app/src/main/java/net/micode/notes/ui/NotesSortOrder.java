@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import net.micode.notes.data.Notes.NoteColumns;
+
+/**
+ * Sort orders of the notes list. Rows are sorted by type first, then pinned
+ * notes before the others, then by the key of the order, then by id so every
+ * row has a unique position. Each order has a database index on
+ * (parent_id, type, pinned, key, id) in the same directions, see
+ * NotesDatabaseHelper, so a page is read with one index seek from the last
+ * row of the previous page.
+ */
+public class NotesSortOrder {
+    public static final int MODIFIED_DATE = 0;
+    public static final int CREATED_DATE  = 1;
+    public static final int TITLE         = 2;
+    public static final int BG_COLOR      = 3;
+    public static final int ALERTED_DATE  = 4;
+
+    // Order of the pinned notes, whatever the order of the others
+    public static final int PIN_RANK      = 5;
+
+    public static final int DEFAULT = MODIFIED_DATE;
+
+    private static final String PREFERENCE_SORT_ORDER = "pref_key_sort_order";
+
+    // Column of the key, and the expression it's sorted and compared by
+    private static final String[] KEY_COLUMNS = {
+        NoteColumns.MODIFIED_DATE,
+        NoteColumns.CREATED_DATE,
+        NoteColumns.SNIPPET,
+        NoteColumns.BG_COLOR_ID,
+        NoteColumns.ALERTED_DATE,
+        NoteColumns.PIN_RANK
+    };
+
+    private static final String[] KEYS = {
+        NoteColumns.MODIFIED_DATE,
+        NoteColumns.CREATED_DATE,
+        NoteColumns.SNIPPET + " COLLATE NOCASE",
+        NoteColumns.BG_COLOR_ID,
+        NoteColumns.ALERTED_DATE,
+        NoteColumns.PIN_RANK
+    };
+
+    private static final boolean[] DESCENDING = {
+        true, true, false, false, true, false
+    };
+
+    public static int getSortOrder(Context context) {
+        int order = PreferenceManager.getDefaultSharedPreferences(context).getInt(
+                PREFERENCE_SORT_ORDER, DEFAULT);
+        return (order >= 0 && order < PIN_RANK) ? order : DEFAULT;
+    }
+
+    public static void setSortOrder(Context context, int order) {
+        if (order < 0 || order >= PIN_RANK) {
+            throw new IllegalArgumentException("Wrong sort order " + order);
+        }
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putInt(PREFERENCE_SORT_ORDER, order).commit();
+    }
+
+    public static String getOrderBy(int order) {
+        String direction = DESCENDING[order] ? " DESC" : " ASC";
+        return NoteColumns.TYPE + " DESC," + NoteColumns.PINNED + " DESC," + KEYS[order]
+                + direction + "," + NoteColumns.ID + direction;
+    }
+
+    /**
+     * Name of the column holding the key of the order
+     */
+    public static String getKeyColumn(int order) {
+        return KEY_COLUMNS[order];
+    }
+
+    /**
+     * Selection of the rows after the row with the key and id, within one
+     * type and pinned state. Written as a range on the key so the index is seeked to it, the
+     * rest only filters the rows with the same key. Takes the args of
+     * {@link #getAfterArgs}.
+     */
+    public static String getAfterSelection(int order) {
+        String op = DESCENDING[order] ? "<" : ">";
+        return KEYS[order] + op + "=? AND (" + KEYS[order] + op + "? OR "
+                + NoteColumns.ID + op + "?)";
+    }
+
+    public static String[] getAfterArgs(String key, long id) {
+        return new String[] { key, key, String.valueOf(id) };
+    }
+}
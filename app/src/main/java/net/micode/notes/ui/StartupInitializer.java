@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.model.WorkingNote;
+import net.micode.notes.tool.ResourceParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Work the notes list needs before its first query, done in the background
+ * so it doesn't hold up the first frame: opening the database, which may
+ * upgrade it, reading the preferences and adding the introduction note on
+ * the first launch. Started before the layout is inflated so both run at
+ * the same time. The work is done once per process, an activity created
+ * meanwhile, e.g. after a rotation, takes over the result.
+ */
+public class StartupInitializer {
+    private static final String TAG = "StartupInitializer";
+
+    private static final String PREFERENCE_ADD_INTRODUCTION = "net.micode.notes.introduction";
+
+    // Only the first start of the list in a process is a cold start
+    private static boolean sColdStart = true;
+
+    // Whether the work was started in this process, and whether it's done,
+    // only touched on the UI thread
+    private static boolean sStarted;
+
+    private static boolean sComplete;
+
+    // Callback of the activity waiting for the work, if any
+    private static Callback sCallback;
+
+    public interface Callback {
+        /**
+         * Called on the UI thread once the startup work is done
+         */
+        void onStartupComplete(int sortOrder);
+    }
+
+    /**
+     * Start the startup work unless it's already started in this process,
+     * the callback gets the preferences it read. Called on the UI thread,
+     * the callback may be called before it returns if the work is done.
+     */
+    public static void start(Context context, Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        if (sComplete) {
+            // the preferences are in memory since the first read
+            callback.onStartupComplete(NotesSortOrder.getSortOrder(appContext));
+            return;
+        }
+        sCallback = callback;
+        if (sStarted) {
+            return;
+        }
+        sStarted = true;
+        new AsyncTask<Void, Void, Integer>() {
+            protected Integer doInBackground(Void... unused) {
+                prewarmDatabase(appContext);
+                markColdStart("database opened");
+                SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(appContext);
+                int sortOrder = NotesSortOrder.getSortOrder(appContext);
+                markColdStart("preferences read");
+                if (!sp.getBoolean(PREFERENCE_ADD_INTRODUCTION, false)) {
+                    addIntroduction(appContext, sp);
+                    markColdStart("introduction added");
+                }
+                return sortOrder;
+            }
+
+            protected void onPostExecute(Integer sortOrder) {
+                sComplete = true;
+                Callback callback = sCallback;
+                sCallback = null;
+                if (callback != null) {
+                    callback.onStartupComplete(sortOrder);
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Stop delivering the result to the callback, e.g. as its activity is
+     * destroyed, the work itself goes on
+     */
+    public static void detach(Callback callback) {
+        if (sCallback == callback) {
+            sCallback = null;
+        }
+    }
+
+    /**
+     * Log the time of a cold start step since the process started, as
+     * "StartupInitializer: Cold start <step> at <n>ms"
+     */
+    public static void markColdStart(String step) {
+        if (sColdStart) {
+            Log.i(TAG, "Cold start " + step + " at "
+                    + (SystemClock.uptimeMillis() - Process.getStartUptimeMillis()) + "ms");
+        }
+    }
+
+    /**
+     * End the cold start, the later steps are not logged
+     */
+    public static void endColdStart() {
+        if (sColdStart) {
+            markColdStart("finished");
+            sColdStart = false;
+        }
+    }
+
+    private static void prewarmDatabase(Context context) {
+        // The first query opens the database, and creates or upgrades it
+        Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                new String[] { NoteColumns.ID }, NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER,
+                null, null);
+        if (c == null) {
+            Log.e(TAG, "Open database failed");
+            return;
+        }
+        c.close();
+    }
+
+    private static void addIntroduction(Context context, SharedPreferences sp) {
+        StringBuilder sb = new StringBuilder();
+        InputStream in = null;
+        try {
+            in = context.getResources().openRawResource(R.raw.introduction);
+            BufferedReader br = new BufferedReader(new InputStreamReader(in));
+            char [] buf = new char[1024];
+            int len = 0;
+            while ((len = br.read(buf)) > 0) {
+                sb.append(buf, 0, len);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Read introduction file error", e);
+            return;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        WorkingNote note = WorkingNote.createEmptyNote(context, Notes.ID_ROOT_FOLDER,
+                AppWidgetManager.INVALID_APPWIDGET_ID, Notes.TYPE_WIDGET_INVALIDE,
+                ResourceParser.RED);
+        note.setWorkingText(sb.toString());
+        if (note.saveNote()) {
+            sp.edit().putBoolean(PREFERENCE_ADD_INTRODUCTION, true).commit();
+        } else {
+            Log.e(TAG, "Save introduction note error");
+        }
+    }
+}
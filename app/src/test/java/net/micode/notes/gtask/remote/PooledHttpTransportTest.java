@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * PooledHttpTransport against a local stand-in server
+ */
+public class PooledHttpTransportTest {
+    private HttpServer mServer;
+
+    private ExecutorService mExecutor;
+
+    private String mUrl;
+
+    private PooledHttpTransport mTransport;
+
+    // Client port and Accept-Encoding of each request served
+    private final List<Integer> mPorts = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private final List<String> mEncodings = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/ok", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                mPorts.add(exchange.getRemoteAddress().getPort());
+                mEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                respond(exchange, "ok");
+            }
+        });
+        mServer.createContext("/stall", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, "late");
+            }
+        });
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+        mTransport = new PooledHttpTransport(2, 1000, 300);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.shutdown();
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    @Test
+    public void reusesConnection() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            HttpResponse response = mTransport.execute(new HttpGet(mUrl + "/ok"));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("ok", EntityUtils.toString(response.getEntity()));
+        }
+        assertEquals(3, mPorts.size());
+        assertEquals(mPorts.get(0), mPorts.get(1));
+        assertEquals(mPorts.get(0), mPorts.get(2));
+        assertEquals("gzip", mEncodings.get(0));
+    }
+
+    @Test
+    public void stalledServerTimesOut() throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            mTransport.execute(new HttpGet(mUrl + "/stall"));
+            fail("a stalled read should time out");
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+
+        // the pool is still usable after
+        HttpResponse response = mTransport.execute(new HttpGet(mUrl + "/ok"));
+        assertEquals("ok", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void retryDelayIsJitteredAndBounded() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = mTransport.getRetryDelay(attempt);
+                assertTrue(delay >= 0 && delay < 500L << attempt);
+            }
+        }
+        assertEquals(-1, mTransport.getRetryDelay(3));
+    }
+}